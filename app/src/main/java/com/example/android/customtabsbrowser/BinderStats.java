@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call counts, throughput and latencies of the {@link MyCustomTabsService} binder methods, to see
+ * how the service behaves when many clients call it concurrently.
+ * <p/>
+ * Like {@link LaunchTrace}, latencies are recorded into preallocated rings without locking, so
+ * recording never allocates or blocks a binder thread. A slot being overwritten while it is read
+ * may skew a percentile slightly, which is acceptable for statistics.
+ */
+final class BinderStats {
+
+    static final int WARMUP = 0;
+    static final int NEW_SESSION = 1;
+    static final int MAY_LAUNCH_URL = 2;
+    static final int EXTRA_COMMAND = 3;
+    static final int UPDATE_VISUALS = 4;
+    static final int CLEAN_UP_SESSION = 5;
+
+    private static final String[] NAMES = {
+            "warmup",
+            "newSession",
+            "mayLaunchUrl",
+            "extraCommand",
+            "updateVisuals",
+            "cleanUpSession",
+    };
+
+    // Must be a power of two.
+    private static final int LATENCY_CAPACITY = 128;
+
+    private static final long sStartNanos = System.nanoTime();
+    private static final AtomicIntegerArray sCallCounts = new AtomicIntegerArray(NAMES.length);
+    private static final AtomicLongArray sTotalLatencyNanos = new AtomicLongArray(NAMES.length);
+    // The latency ring of each method, one after the other.
+    private static final long[] sLatenciesNanos = new long[NAMES.length * LATENCY_CAPACITY];
+
+    private BinderStats() {
+    }
+
+    /**
+     * Returns the start time to pass to {@link #end(int, long)}.
+     */
+    static long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a call of the given method which started at the given time.
+     */
+    static void end(int method, long startNanos) {
+        long latency = System.nanoTime() - startNanos;
+        int count = sCallCounts.getAndIncrement(method);
+        sLatenciesNanos[method * LATENCY_CAPACITY + (count & (LATENCY_CAPACITY - 1))] = latency;
+        sTotalLatencyNanos.addAndGet(method, latency);
+    }
+
+    static int getCallCount(int method) {
+        return sCallCounts.get(method);
+    }
+
+    /**
+     * Returns the mean number of calls of the given method per second since the process started.
+     */
+    static float getCallsPerSecond(int method) {
+        long elapsedNanos = System.nanoTime() - sStartNanos;
+        return elapsedNanos == 0 ? 0 : sCallCounts.get(method) * 1e9f / elapsedNanos;
+    }
+
+    static long getMeanLatencyUs(int method) {
+        int count = sCallCounts.get(method);
+        return count == 0 ? 0 : sTotalLatencyNanos.get(method) / count / 1000;
+    }
+
+    /**
+     * Returns the given percentile of the latest latencies of the given method in microseconds
+     * or 0 if it has not been called.
+     */
+    static long getLatencyPercentileUs(int method, int percentile) {
+        int count = Math.min(sCallCounts.get(method), LATENCY_CAPACITY);
+        if (count == 0) {
+            return 0;
+        }
+        int offset = method * LATENCY_CAPACITY;
+        long[] latencies = Arrays.copyOfRange(sLatenciesNanos, offset, offset + count);
+        Arrays.sort(latencies);
+        int index = Math.min(count - 1, (count * percentile + 99) / 100 - 1);
+        return latencies[Math.max(0, index)] / 1000;
+    }
+
+    /**
+     * Writes the statistics of each method.
+     */
+    static void dump(PrintWriter writer) {
+        writer.println("Binder calls:");
+        for (int i = 0; i < NAMES.length; i++) {
+            writer.println("  " + NAMES[i] + " calls=" + getCallCount(i)
+                    + " perSecond=" + getCallsPerSecond(i)
+                    + " meanUs=" + getMeanLatencyUs(i)
+                    + " p50Us=" + getLatencyPercentileUs(i, 50)
+                    + " p99Us=" + getLatencyPercentileUs(i, 99));
+        }
+    }
+
+    /**
+     * Returns the statistics as parallel arrays indexed like the method names.
+     */
+    static Bundle toBundle() {
+        int[] calls = new int[NAMES.length];
+        float[] callsPerSecond = new float[NAMES.length];
+        long[] meanUs = new long[NAMES.length];
+        long[] p50Us = new long[NAMES.length];
+        long[] p99Us = new long[NAMES.length];
+        for (int i = 0; i < NAMES.length; i++) {
+            calls[i] = getCallCount(i);
+            callsPerSecond[i] = getCallsPerSecond(i);
+            meanUs[i] = getMeanLatencyUs(i);
+            p50Us[i] = getLatencyPercentileUs(i, 50);
+            p99Us[i] = getLatencyPercentileUs(i, 99);
+        }
+        Bundle bundle = new Bundle();
+        bundle.putStringArray("names", NAMES.clone());
+        bundle.putIntArray("calls", calls);
+        bundle.putFloatArray("callsPerSecond", callsPerSecond);
+        bundle.putLongArray("meanUs", meanUs);
+        bundle.putLongArray("p50Us", p50Us);
+        bundle.putLongArray("p99Us", p99Us);
+        return bundle;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Streams a response body to its reader while copying it into a file. The bytes are copied
+ * straight from the reader's buffer, so the body is never held in memory. Once the body has been
+ * read to the end the {@link Listener} receives the file, its SHA-1 and size. If the reader
+ * closes the stream early or the file cannot be written, the file is deleted and the body is
+ * still delivered to the reader.
+ */
+class CachingInputStream extends FilterInputStream {
+
+    private static final String TAG = "CachingInputStream";
+
+    /**
+     * Receives the completely read body.
+     */
+    interface Listener {
+        void onComplete(File body, String contentHash, long size);
+    }
+
+    private final File mBody;
+    private final MessageDigest mDigest;
+    private final Listener mListener;
+    private OutputStream mOut;
+    private long mSize;
+    private boolean mDone;
+
+    CachingInputStream(InputStream in, File body, MessageDigest digest, Listener listener)
+            throws IOException {
+        super(in);
+        mBody = body;
+        mDigest = digest;
+        mListener = listener;
+        mOut = new FileOutputStream(body);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if (value == -1) {
+            complete();
+        } else if (mOut != null) {
+            mDigest.update((byte) value);
+            try {
+                mOut.write(value);
+                mSize++;
+            } catch (IOException e) {
+                Log.w(TAG, "could not write " + mBody, e);
+                abort();
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read = super.read(buffer, offset, count);
+        if (read == -1) {
+            complete();
+        } else if (mOut != null) {
+            mDigest.update(buffer, offset, read);
+            write(buffer, offset, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        // Skipped bytes would be missing from the copy.
+        abort();
+        return super.skip(count);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        abort();
+        super.close();
+    }
+
+    private void write(byte[] buffer, int offset, int count) {
+        try {
+            mOut.write(buffer, offset, count);
+            mSize += count;
+        } catch (IOException e) {
+            Log.w(TAG, "could not write " + mBody, e);
+            abort();
+        }
+    }
+
+    private void complete() {
+        if (mDone || mOut == null) {
+            return;
+        }
+        mDone = true;
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            Log.w(TAG, "could not write " + mBody, e);
+            mOut = null;
+            mBody.delete();
+            return;
+        }
+        mOut = null;
+        mListener.onComplete(mBody, ResourceInterceptor.toHex(mDigest.digest()), mSize);
+    }
+
+    private void abort() {
+        if (mDone) {
+            return;
+        }
+        mDone = true;
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            // The file is deleted anyway.
+        }
+        mOut = null;
+        mBody.delete();
+    }
+}
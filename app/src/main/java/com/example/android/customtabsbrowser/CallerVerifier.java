@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.Process;
+import android.util.SparseArray;
+
+/**
+ * Verifies the callers of the service by uid. A caller is verified if its uid belongs to an
+ * installed package, and trusted if it is signed with the same certificate as this app.
+ * <p/>
+ * Results are cached per uid, so repeated calls from the same client cost a map lookup instead of
+ * package manager calls. The cache entry of a uid is dropped when one of its packages is added,
+ * removed, replaced or changed. Uninstalled packages are also forgotten by the
+ * {@link NavigationPredictor}. Safe to call from any thread.
+ */
+class CallerVerifier {
+
+    /**
+     * The result of verifying a uid.
+     */
+    static final class Caller {
+        // Null if the caller is not verified.
+        final String mPackageName;
+        final boolean mTrusted;
+
+        Caller(String packageName, boolean trusted) {
+            mPackageName = packageName;
+            mTrusted = trusted;
+        }
+
+        boolean isVerified() {
+            return mPackageName != null;
+        }
+    }
+
+    private static final Caller UNVERIFIED = new Caller(null, false);
+
+    private static CallerVerifier sInstance;
+
+    // Guarded by this.
+    private final SparseArray<Caller> mCallers = new SparseArray<Caller>();
+    // Incremented on each invalidation, so that lookups racing with it are not cached.
+    private int mGeneration;
+    private boolean mReceiverRegistered;
+
+    private final BroadcastReceiver mPackageChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            synchronized (CallerVerifier.this) {
+                mGeneration++;
+                if (uid == -1) {
+                    mCallers.clear();
+                } else {
+                    mCallers.remove(uid);
+                }
+            }
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())
+                    && !intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)
+                    && intent.getData() != null) {
+                NavigationPredictor.getInstance()
+                        .forgetPackage(context, intent.getData().getSchemeSpecificPart());
+            }
+        }
+    };
+
+    static synchronized CallerVerifier getInstance() {
+        if (sInstance == null) {
+            sInstance = new CallerVerifier();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the verification result for the given uid, from the cache if possible.
+     */
+    Caller verify(Context context, int uid) {
+        int generation;
+        synchronized (this) {
+            Caller caller = mCallers.get(uid);
+            if (caller != null) {
+                return caller;
+            }
+            if (!mReceiverRegistered) {
+                mReceiverRegistered = true;
+                registerPackageChangeReceiver(context.getApplicationContext());
+            }
+            generation = mGeneration;
+        }
+        // Package manager calls are binder calls, they are made outside of the lock.
+        Caller caller = lookUp(context.getPackageManager(), uid);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mCallers.put(uid, caller);
+            }
+        }
+        return caller;
+    }
+
+    private void registerPackageChangeReceiver(Context appContext) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        appContext.registerReceiver(mPackageChangeReceiver, filter);
+    }
+
+    private static Caller lookUp(PackageManager packageManager, int uid) {
+        String[] packageNames = packageManager.getPackagesForUid(uid);
+        if (packageNames == null || packageNames.length == 0) {
+            return UNVERIFIED;
+        }
+        boolean trusted = packageManager.checkSignatures(Process.myUid(), uid)
+                == PackageManager.SIGNATURE_MATCH;
+        // Shared uids map to several packages, the first one stands for all of them.
+        return new Caller(packageNames[0], trusted);
+    }
+}
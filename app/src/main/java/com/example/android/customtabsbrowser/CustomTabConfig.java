@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.List;
+
+import static android.support.customtabs.CustomTabsIntent.EXTRA_ACTION_BUTTON_BUNDLE;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_CLOSE_BUTTON_ICON;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_EXIT_ANIMATION_BUNDLE;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_MENU_ITEMS;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_SESSION;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_TITLE_VISIBILITY_STATE;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_TOOLBAR_COLOR;
+import static android.support.customtabs.CustomTabsIntent.KEY_DESCRIPTION;
+import static android.support.customtabs.CustomTabsIntent.KEY_ICON;
+import static android.support.customtabs.CustomTabsIntent.KEY_MENU_ITEM_TITLE;
+import static android.support.customtabs.CustomTabsIntent.KEY_PENDING_INTENT;
+import static android.support.customtabs.CustomTabsIntent.NO_TITLE;
+
+/**
+ * Immutable snapshot of the configuration carried by a custom tab intent. The intent extras are
+ * parsed once in {@link #fromIntent(Intent)}, all accessors only read fields. Menu items are the
+ * exception: their bundles are kept as sent and only read when the menu is built, after the
+ * page is shown. Reading any entry of an item unparcels the whole item, pending intent included.
+ */
+final class CustomTabConfig {
+
+    private static final String TAG = "CustomTabConfig";
+
+    static final int NO_COLOR = -1;
+
+    /**
+     * Menu items beyond this number are ignored.
+     */
+    static final int MAX_MENU_ITEMS = 5;
+
+    private static final String KEY_ANIM_ENTER_RES_ID = "android:activity.animEnterRes";
+    private static final String KEY_ANIM_EXIT_RES_ID = "android:activity.animExitRes";
+
+    private final boolean mCustomTab;
+    private final String mUrl;
+    private final int mToolbarColor;
+    private final int mTitleVisibility;
+    private final Bitmap mCloseButtonIcon;
+    private final boolean mActionButton;
+    private final Bitmap mActionButtonIcon;
+    private final String mActionButtonDescription;
+    private final PendingIntent mActionButtonPendingIntent;
+    private final List<Bundle> mMenuItems;
+    private final boolean mExitAnimation;
+    private final int mExitAnimationEnterResId;
+    private final int mExitAnimationExitResId;
+
+    private CustomTabConfig(Intent intent) {
+        Bundle extras = intent.getExtras();
+        mUrl = intent.getDataString();
+        mCustomTab = extras != null && extras.containsKey(EXTRA_SESSION) && mUrl != null;
+        if (!mCustomTab) {
+            mToolbarColor = NO_COLOR;
+            mTitleVisibility = NO_TITLE;
+            mCloseButtonIcon = null;
+            mActionButton = false;
+            mActionButtonIcon = null;
+            mActionButtonDescription = null;
+            mActionButtonPendingIntent = null;
+            mMenuItems = Collections.emptyList();
+            mExitAnimation = false;
+            mExitAnimationEnterResId = 0;
+            mExitAnimationExitResId = 0;
+            return;
+        }
+
+        mToolbarColor = extras.getInt(EXTRA_TOOLBAR_COLOR, NO_COLOR);
+        mTitleVisibility = extras.getInt(EXTRA_TITLE_VISIBILITY_STATE, NO_TITLE);
+        mCloseButtonIcon = extras.getParcelable(EXTRA_CLOSE_BUTTON_ICON);
+
+        Bundle actionButton = extras.getParcelable(EXTRA_ACTION_BUTTON_BUNDLE);
+        mActionButton = actionButton != null;
+        if (mActionButton) {
+            mActionButtonIcon = actionButton.getParcelable(KEY_ICON);
+            mActionButtonDescription = actionButton.getString(KEY_DESCRIPTION, "");
+            mActionButtonPendingIntent = actionButton.getParcelable(KEY_PENDING_INTENT);
+        } else {
+            mActionButtonIcon = null;
+            mActionButtonDescription = null;
+            mActionButtonPendingIntent = null;
+        }
+
+        List<Bundle> menuItems = extras.getParcelableArrayList(EXTRA_MENU_ITEMS);
+        if (menuItems == null) {
+            mMenuItems = Collections.emptyList();
+        } else if (menuItems.size() > MAX_MENU_ITEMS) {
+            Log.w(TAG, "ignoring " + (menuItems.size() - MAX_MENU_ITEMS)
+                    + " menu items beyond the first " + MAX_MENU_ITEMS);
+            mMenuItems = menuItems.subList(0, MAX_MENU_ITEMS);
+        } else {
+            mMenuItems = menuItems;
+        }
+
+        Bundle exitAnimation = extras.getBundle(EXTRA_EXIT_ANIMATION_BUNDLE);
+        mExitAnimation = exitAnimation != null;
+        mExitAnimationEnterResId = mExitAnimation ? exitAnimation.getInt(KEY_ANIM_ENTER_RES_ID) : 0;
+        mExitAnimationExitResId = mExitAnimation ? exitAnimation.getInt(KEY_ANIM_EXIT_RES_ID) : 0;
+    }
+
+    /**
+     * Parses the configuration of the given intent.
+     */
+    static CustomTabConfig fromIntent(Intent intent) {
+        return new CustomTabConfig(intent);
+    }
+
+    /**
+     * Returns true if the intent was a valid custom tab intent.
+     */
+    boolean isCustomTab() {
+        return mCustomTab;
+    }
+
+    String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * Returns the toolbar color or {@link #NO_COLOR} if none has been provided.
+     */
+    int getToolbarColor() {
+        return mToolbarColor;
+    }
+
+    boolean isTitleVisible() {
+        return mTitleVisibility != NO_TITLE;
+    }
+
+    /**
+     * Returns the custom close button icon or null.
+     */
+    Bitmap getCloseButtonIcon() {
+        return mCloseButtonIcon;
+    }
+
+    boolean hasActionButton() {
+        return mActionButton;
+    }
+
+    Bitmap getActionButtonIcon() {
+        return mActionButtonIcon;
+    }
+
+    String getActionButtonDescription() {
+        return mActionButtonDescription;
+    }
+
+    PendingIntent getActionButtonPendingIntent() {
+        return mActionButtonPendingIntent;
+    }
+
+    /**
+     * Returns the number of menu items sent, including invalid ones.
+     */
+    int getMenuItemCount() {
+        return mMenuItems.size();
+    }
+
+    /**
+     * Returns the title of a menu item, or null or an empty string if it has none.
+     */
+    String getMenuItemTitle(int index) {
+        return mMenuItems.get(index).getString(KEY_MENU_ITEM_TITLE);
+    }
+
+    /**
+     * Returns the pending intent of a menu item or null if it has none.
+     */
+    PendingIntent getMenuItemPendingIntent(int index) {
+        return mMenuItems.get(index).getParcelable(KEY_PENDING_INTENT);
+    }
+
+    boolean hasExitAnimation() {
+        return mExitAnimation;
+    }
+
+    int getExitAnimationEnterResId() {
+        return mExitAnimationEnterResId;
+    }
+
+    int getExitAnimationExitResId() {
+        return mExitAnimationExitResId;
+    }
+}
@@ -15,41 +15,33 @@
  */
 package com.example.android.customtabsbrowser;
 
+import android.animation.ValueAnimator;
 import android.app.Activity;
 import android.app.PendingIntent;
+import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Bundle;
 import android.text.TextUtils;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.view.Window;
 import android.view.WindowManager;
 import android.widget.Button;
 
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static android.support.customtabs.CustomTabsIntent.EXTRA_ACTION_BUTTON_BUNDLE;
-import static android.support.customtabs.CustomTabsIntent.EXTRA_CLOSE_BUTTON_ICON;
-import static android.support.customtabs.CustomTabsIntent.EXTRA_EXIT_ANIMATION_BUNDLE;
-import static android.support.customtabs.CustomTabsIntent.EXTRA_MENU_ITEMS;
-import static android.support.customtabs.CustomTabsIntent.EXTRA_SESSION;
-import static android.support.customtabs.CustomTabsIntent.EXTRA_TITLE_VISIBILITY_STATE;
-import static android.support.customtabs.CustomTabsIntent.EXTRA_TOOLBAR_COLOR;
 import static android.support.customtabs.CustomTabsIntent.KEY_DESCRIPTION;
 import static android.support.customtabs.CustomTabsIntent.KEY_ICON;
-import static android.support.customtabs.CustomTabsIntent.KEY_MENU_ITEM_TITLE;
-import static android.support.customtabs.CustomTabsIntent.KEY_PENDING_INTENT;
-import static android.support.customtabs.CustomTabsIntent.NO_TITLE;
 
 /**
- * Configures a custom tab. Extracts all configuration parameters from the activity's intent.
- * Clients need to provide a
+ * Configures a custom tab. Extracts all configuration parameters from the activity's intent once
+ * into a {@link CustomTabConfig}. Clients need to provide a
  * {@link Callback} to handle different
  * configuration parameters.
  * <p/>
@@ -57,12 +49,20 @@ import static android.support.customtabs.CustomTabsIntent.NO_TITLE;
  * <ol>
  * <li>notify the controller whenever a new website is loaded via: {@link #onTitleChange(String)}.
  * </li>
+ * <li>notify the controller once the first page has been painted via: {@link #onFirstPaint()}.
+ * </li>
  * <p/>
  * <li>hook the controller into the activity lifecycle:</li>
  * </ol>
  * <pre>
  *   <code>
  *   @Override
+ *   protected void onNewIntent(Intent intent) {
+ *     super.onNewIntent(intent);
+ *     setIntent(intent);
+ *     mCustomTabController.onNewIntent(intent);
+ *   }
+ *   @Override
  *   protected void onStart() {
  *     super.onStart();
  *     if (mCustomTabController.hasCustomTabIntent()) {
@@ -102,6 +102,8 @@ import static android.support.customtabs.CustomTabsIntent.NO_TITLE;
  */
 public class CustomTabController {
 
+    private static final long TOOLBAR_COLOR_ANIMATION_DURATION_MS = 200;
+
     /**
      * Callback for browsers implementing the custom tabs protocol.
      */
@@ -132,7 +134,10 @@ public class CustomTabController {
         void setActionButtonOnClickListener(Button.OnClickListener customTabsController);
 
         /**
-         * Set the action button icon. Only called if a custom action is provided.
+         * Set the action button icon. Only called if a custom action is provided. The icon is
+         * prepared in the background once the page has been painted, so this is called
+         * asynchronously after {@link CustomTabController#launch()} and
+         * {@link CustomTabController#onFirstPaint()}.
          */
         void setActionButtonImageDrawable(Drawable drawable);
 
@@ -142,7 +147,10 @@ public class CustomTabController {
         void setActionButtonContentDescription(CharSequence description);
 
         /**
-         * Set the close action icon. Only called if a custom icon is provided.
+         * Set the close action icon. Only called if a custom icon is provided. The icon is
+         * prepared in the background once the page has been painted, so this is called
+         * asynchronously after {@link CustomTabController#launch()} and
+         * {@link CustomTabController#onFirstPaint()}.
          */
         void setActionBarCloseDrawable(Drawable drawable);
 
@@ -152,23 +160,85 @@ public class CustomTabController {
         void setActionBarBackgroundDrawable(Drawable drawable);
 
         /**
-         * Callback for errors.
+         * Set the color of the toolbar texts, chosen to contrast with the background. Only called
+         * if a custom background color is provided.
+         */
+        void setToolbarTextColor(int color);
+
+        /**
+         * Callback for errors. Failures to send a pending intent are reported asynchronously on
+         * the UI thread, after the tap has been handled.
          */
         void onError(String description, Exception e);
     }
 
-    private static final String KEY_ANIM_ENTER_RES_ID = "android:activity.animEnterRes";
-    private static final String KEY_ANIM_EXIT_RES_ID = "android:activity.animExitRes";
-    private static final int NO_COLOR = -1;
     private final Activity mActivity;
     private final Callback mCallback;
     private final MenuItemClickListener mMenuItemClickListener = new MenuItemClickListener();
     private final ActionButtonOnClickListener mActionButtonOnClickListener =
             new ActionButtonOnClickListener();
+    private final PendingIntentDispatcher.ErrorListener mSendErrorListener =
+            new PendingIntentDispatcher.ErrorListener() {
+                @Override
+                public void onSendFailed(PendingIntent.CanceledException e) {
+                    mCallback.onError("Exception when triggering pending intent", e);
+                }
+            };
+    // Also read by updateVisuals(), from binder threads.
+    private volatile CustomTabConfig mConfig;
+    // Incremented for each launch to drop icons prepared for a previous launch.
+    private int mLaunchCount;
+    private boolean mFirstPaintDone;
+    private boolean mIconsPending;
+    // The toolbar colors, the drawable is kept to change its color in place.
+    private ToolbarPalette mPalette;
+    private ColorDrawable mToolbarDrawable;
+    private int mStatusBarColor;
+    private ValueAnimator mToolbarColorAnimator;
+    private int mAnimationStartToolbarColor;
+    private int mAnimationStartStatusBarColor;
+    // Only accessed on the UI thread.
+    private String mPendingTitle;
+    private boolean mTitleUpdateScheduled;
+    private final Choreographer.FrameCallback mTitleFrameCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    mTitleUpdateScheduled = false;
+                    mCallback.setTitle(mConfig.isTitleVisible() ? mPendingTitle : "");
+                }
+            };
+    private final AtomicReference<Bundle> mPendingVisuals = new AtomicReference<Bundle>();
+    private final Runnable mScheduleVisualsUpdate = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mVisualsFrameCallback);
+        }
+    };
+    private final Choreographer.FrameCallback mVisualsFrameCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    Bundle visuals = mPendingVisuals.getAndSet(null);
+                    // A new intent may have dropped the action button since the update.
+                    if (visuals != null && mConfig.hasActionButton()) {
+                        applyVisuals(visuals);
+                    }
+                }
+            };
 
     public CustomTabController(Activity activity, Callback callback) {
         mActivity = activity;
         mCallback = callback;
+        mConfig = CustomTabConfig.fromIntent(activity.getIntent());
+    }
+
+    /**
+     * Parses the configuration of a new intent. Should be called from
+     * {@link Activity#onNewIntent(Intent)}.
+     */
+    public void onNewIntent(Intent intent) {
+        mConfig = CustomTabConfig.fromIntent(intent);
     }
 
     /**
@@ -178,59 +248,83 @@ public class CustomTabController {
         if (!hasCustomTabIntent()) {
             return;
         }
-        String url = mActivity.getIntent().getDataString();
-        mCallback.setUrl(url);
+        mLaunchCount++;
+        mCallback.setUrl(mConfig.getUrl());
         updateToolbarColor();
         updateBackButtonIcon();
         updateToolbarAction();
     }
 
+    /**
+     * Notifies the controller that the tab has painted its first page. Icons are only prepared
+     * from then on, so that their work does not compete with the page during launch.
+     */
+    public void onFirstPaint() {
+        mFirstPaintDone = true;
+        if (mIconsPending) {
+            mIconsPending = false;
+            loadBackButtonIcon();
+            loadActionButtonIcon();
+        }
+    }
+
     /**
      * Triggers the exit animation. Should be called after <pre>super.finish()</pre> in
      * {@link Activity#finish()} ()}
      */
     public void finish() {
-        Bundle animation = mActivity.getIntent()
-                .getBundleExtra(EXTRA_EXIT_ANIMATION_BUNDLE);
-        if (animation == null) {
+        if (!mConfig.hasExitAnimation()) {
             return;
         }
         mActivity.overridePendingTransition(
-                animation.getInt(KEY_ANIM_ENTER_RES_ID),
-                animation.getInt(KEY_ANIM_EXIT_RES_ID));
+                mConfig.getExitAnimationEnterResId(),
+                mConfig.getExitAnimationExitResId());
     }
 
     /**
-     * Updates the title if configured. Should be called every time a new website is loaded in the
-     * custom tab.
+     * Updates the title if configured. Should be called on the UI thread every time a new website
+     * is loaded in the custom tab. The title is set on the next frame; if it changes several times
+     * within one frame only the latest title is set.
      */
     public void onTitleChange(String title) {
-        int showTitle = mActivity.getIntent().getIntExtra(EXTRA_TITLE_VISIBILITY_STATE, NO_TITLE);
-        if (showTitle == NO_TITLE) {
-            title = "";
+        mPendingTitle = title;
+        if (!mTitleUpdateScheduled) {
+            mTitleUpdateScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mTitleFrameCallback);
         }
-        mCallback.setTitle(title);
+    }
+
+    /**
+     * Updates the visuals of the launched custom tab, as sent via
+     * {@link android.support.customtabs.CustomTabsService#updateVisuals}. Can be called from any
+     * thread. Updates are applied on the next frame; if several updates arrive within one frame
+     * only the latest one is applied.
+     *
+     * @return false if the custom tab has no action button to update.
+     */
+    public boolean updateVisuals(Bundle visuals) {
+        if (!mConfig.hasActionButton()) {
+            return false;
+        }
+        if (mPendingVisuals.getAndSet(visuals) == null) {
+            ThreadUtils.postOnUiThread(mScheduleVisualsUpdate);
+        }
+        return true;
     }
 
     /**
      * Populates the menu. Should be called as a first statement in
-     * {@link Activity#onCreateOptionsMenu(Menu)}.
+     * {@link Activity#onCreateOptionsMenu(Menu)}. Items without a title or a pending intent are
+     * not shown. As unparceling the items is not free and the menu is rarely opened, activities
+     * may build it once the page is shown rather than during launch.
      */
     public void updateMenu(Menu menu) {
         if (!hasCustomTabIntent()) {
             return;
         }
-        List<Bundle> menuBundles = mActivity.getIntent()
-                .getParcelableArrayListExtra(EXTRA_MENU_ITEMS);
-        if (menuBundles == null) {
-            return;
-        }
-        for (int i = 0; i < menuBundles.size(); i++) {
-            Bundle menuBundle = menuBundles.get(i);
-            PendingIntent pendingIntent = menuBundle
-                    .getParcelable(KEY_PENDING_INTENT);
-            String title = menuBundle.getString(KEY_MENU_ITEM_TITLE);
-            if (!TextUtils.isEmpty(title) && pendingIntent != null) {
+        for (int i = 0; i < mConfig.getMenuItemCount(); i++) {
+            String title = mConfig.getMenuItemTitle(i);
+            if (!TextUtils.isEmpty(title) && mConfig.getMenuItemPendingIntent(i) != null) {
                 menu.add(Menu.NONE, i, Menu.NONE, title)
                         .setOnMenuItemClickListener(mMenuItemClickListener);
             }
@@ -253,90 +347,174 @@ public class CustomTabController {
      * Returns true if the activity was started with a valid custom tab intent.
      */
     public boolean hasCustomTabIntent() {
-        Bundle extras = mActivity.getIntent().getExtras();
-        if (extras == null) {
-            return false;
-        }
-        if (!extras.containsKey(EXTRA_SESSION)) {
-            return false;
-        }
-        return mActivity.getIntent().getDataString() != null;
+        return mConfig.isCustomTab();
     }
 
     private void updateToolbarAction() {
-        Bundle bundle = mActivity
-                .getIntent()
-                .getParcelableExtra(EXTRA_ACTION_BUTTON_BUNDLE);
-        if (bundle == null) {
+        if (!mConfig.hasActionButton()) {
             mCallback.setActionButtonVisibility(View.GONE);
             return;
         }
         mCallback.setActionButtonVisibility(View.VISIBLE);
 
-        String description = bundle.getString(KEY_DESCRIPTION, "");
-        mCallback.setActionButtonContentDescription(description);
+        mCallback.setActionButtonContentDescription(mConfig.getActionButtonDescription());
 
-        Bitmap icon = bundle.getParcelable(KEY_ICON);
-        mCallback.setActionButtonImageDrawable(new BitmapDrawable(mActivity.getResources(), icon));
         mCallback.setActionButtonOnClickListener(mActionButtonOnClickListener);
+        if (!mFirstPaintDone) {
+            mIconsPending = true;
+            return;
+        }
+        loadActionButtonIcon();
+    }
+
+    private void loadActionButtonIcon() {
+        if (!mConfig.hasActionButton()) {
+            return;
+        }
+        Bitmap icon = mConfig.getActionButtonIcon();
+        if (icon == null) {
+            return;
+        }
+        final int launchCount = mLaunchCount;
+        loadIcon(icon, new IconCache.Listener() {
+            @Override
+            public void onIconReady(Bitmap icon) {
+                if (launchCount == mLaunchCount) {
+                    mCallback.setActionButtonImageDrawable(
+                            new BitmapDrawable(mActivity.getResources(), icon));
+                }
+            }
+        });
     }
 
     private void updateBackButtonIcon() {
-        Bitmap bitmap = mActivity.getIntent().getParcelableExtra(EXTRA_CLOSE_BUTTON_ICON);
+        if (!mFirstPaintDone) {
+            mIconsPending = true;
+            return;
+        }
+        loadBackButtonIcon();
+    }
+
+    private void loadBackButtonIcon() {
+        Bitmap bitmap = mConfig.getCloseButtonIcon();
         if (bitmap == null) {
             return;
         }
-        mCallback.setActionBarCloseDrawable(new BitmapDrawable(mActivity.getResources(), bitmap));
+        final int launchCount = mLaunchCount;
+        loadIcon(bitmap, new IconCache.Listener() {
+            @Override
+            public void onIconReady(Bitmap icon) {
+                if (launchCount == mLaunchCount) {
+                    mCallback.setActionBarCloseDrawable(
+                            new BitmapDrawable(mActivity.getResources(), icon));
+                }
+            }
+        });
+    }
+
+    private void applyVisuals(Bundle visuals) {
+        Bundle actionButton = visuals.getBundle(EXTRA_ACTION_BUTTON_BUNDLE);
+        if (actionButton == null) {
+            return;
+        }
+        String description = actionButton.getString(KEY_DESCRIPTION);
+        if (description != null) {
+            mCallback.setActionButtonContentDescription(description);
+        }
+        Bitmap icon = actionButton.getParcelable(KEY_ICON);
+        if (icon == null) {
+            return;
+        }
+        final int launchCount = mLaunchCount;
+        loadIcon(icon, new IconCache.Listener() {
+            @Override
+            public void onIconReady(Bitmap icon) {
+                if (launchCount == mLaunchCount) {
+                    mCallback.setActionButtonImageDrawable(
+                            new BitmapDrawable(mActivity.getResources(), icon));
+                }
+            }
+        });
+    }
+
+    private void loadIcon(Bitmap icon, IconCache.Listener listener) {
+        int size = mActivity.getResources().getDimensionPixelSize(R.dimen.toolbar_icon_size);
+        IconCache.getInstance().load(icon, size, listener);
     }
 
     private void updateToolbarColor() {
-        int color = mActivity.getIntent().getIntExtra(EXTRA_TOOLBAR_COLOR, NO_COLOR);
-        if (color == NO_COLOR) {
+        int color = mConfig.getToolbarColor();
+        if (color == CustomTabConfig.NO_COLOR) {
             return;
         }
-        mCallback.setActionBarBackgroundDrawable(new ColorDrawable(color));
-        Window window = mActivity.getWindow();
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            window.addFlags(WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
-            window.setStatusBarColor(darken(color, 0.25));
+        ToolbarPalette palette = ToolbarPalette.get(color);
+        if (palette == mPalette) {
+            return;
         }
+        if (mToolbarDrawable == null) {
+            mPalette = palette;
+            mToolbarDrawable = new ColorDrawable(palette.mToolbarColor);
+            mCallback.setActionBarBackgroundDrawable(mToolbarDrawable);
+            mCallback.setToolbarTextColor(palette.mTextColor);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                mActivity.getWindow().addFlags(
+                        WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
+            }
+            applyToolbarColors(palette.mToolbarColor, palette.mStatusBarColor);
+            return;
+        }
+        animateToolbarColors(palette);
     }
 
-    private int darken(int color, double fraction) {
-        int red = Color.red(color);
-        int green = Color.green(color);
-        int blue = Color.blue(color);
-        red = darkenColor(red, fraction);
-        green = darkenColor(green, fraction);
-        blue = darkenColor(blue, fraction);
-        int alpha = Color.alpha(color);
-        return Color.argb(alpha, red, green, blue);
+    /**
+     * Animates from the colors currently shown to the given palette. The animator, its listener
+     * and the toolbar drawable are reused, so frames do not allocate.
+     */
+    private void animateToolbarColors(ToolbarPalette palette) {
+        if (mToolbarColorAnimator == null) {
+            mToolbarColorAnimator = ValueAnimator.ofFloat(0f, 1f);
+            mToolbarColorAnimator.setDuration(TOOLBAR_COLOR_ANIMATION_DURATION_MS);
+            mToolbarColorAnimator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
+                @Override
+                public void onAnimationUpdate(ValueAnimator animator) {
+                    float fraction = animator.getAnimatedFraction();
+                    applyToolbarColors(
+                            ToolbarPalette.blend(mAnimationStartToolbarColor,
+                                    mPalette.mToolbarColor, fraction),
+                            ToolbarPalette.blend(mAnimationStartStatusBarColor,
+                                    mPalette.mStatusBarColor, fraction));
+                }
+            });
+        }
+        // Starts from the colors shown, which may be halfway through a cancelled animation.
+        mToolbarColorAnimator.cancel();
+        mAnimationStartToolbarColor = mToolbarDrawable.getColor();
+        mAnimationStartStatusBarColor = mStatusBarColor;
+        mPalette = palette;
+        mCallback.setToolbarTextColor(palette.mTextColor);
+        mToolbarColorAnimator.start();
     }
 
-    private int darkenColor(int color, double fraction) {
-        return (int) Math.max(color - (color * fraction), 0);
+    private void applyToolbarColors(int toolbarColor, int statusBarColor) {
+        mToolbarDrawable.setColor(toolbarColor);
+        mStatusBarColor = statusBarColor;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mActivity.getWindow().setStatusBarColor(statusBarColor);
+        }
     }
 
     private void send(PendingIntent pendingIntent) {
-        try {
-            pendingIntent.send();
-        } catch (PendingIntent.CanceledException e) {
-            mCallback.onError("Exception when triggering pending intent", e);
-        }
+        PendingIntentDispatcher.getInstance().send(pendingIntent, mSendErrorListener);
     }
 
     private class MenuItemClickListener implements MenuItem.OnMenuItemClickListener {
 
         @Override
         public boolean onMenuItemClick(MenuItem item) {
-            List<Bundle> menuBundles = mActivity.getIntent()
-                    .getParcelableArrayListExtra(EXTRA_MENU_ITEMS);
-            if (menuBundles == null) {
+            if (item.getItemId() >= mConfig.getMenuItemCount()) {
                 return true;
             }
-
-            PendingIntent pendingIntent = menuBundles.get(item.getItemId())
-                    .getParcelable(KEY_PENDING_INTENT);
+            PendingIntent pendingIntent = mConfig.getMenuItemPendingIntent(item.getItemId());
             if (pendingIntent == null) {
                 return true;
             }
@@ -349,12 +527,7 @@ public class CustomTabController {
 
         @Override
         public void onClick(View v) {
-            Bundle extras = mActivity.getIntent().getParcelableExtra(EXTRA_ACTION_BUTTON_BUNDLE);
-            if (extras == null) {
-                return;
-            }
-
-            final PendingIntent pendingIntent = extras.getParcelable(KEY_PENDING_INTENT);
+            PendingIntent pendingIntent = mConfig.getActionButtonPendingIntent();
             if (pendingIntent == null) {
                 return;
             }
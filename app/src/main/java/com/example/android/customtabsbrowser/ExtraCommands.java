@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.os.Bundle;
+import android.support.customtabs.CustomTabsService;
+
+/**
+ * Metrics and control commands served through {@link CustomTabsService#extraCommand}. Every
+ * response carries {@link #KEY_VERSION}, unknown commands return {@link Bundle#EMPTY}.
+ * <ul>
+ * <li>{@value #GET_STATS}: returns the counters listed below.</li>
+ * <li>{@value #GET_LAUNCH_TRACE}: returns the {@link LaunchTrace} events.</li>
+ * <li>{@value #GET_BINDER_STATS}: returns the {@link BinderStats} of each service method.</li>
+ * <li>{@value #TRIM_CACHES}: drops cached icons and resources, idle WebViews and kept tabs.</li>
+ * <li>{@value #SET_SPECULATION_BUDGET}: applies {@link #ARG_MAX_CONCURRENT_SPECULATIONS},
+ * {@link #ARG_MEMORY_CEILING_BYTES} and {@link #ARG_PRERENDER_ENABLED} if present.</li>
+ * </ul>
+ * The last two change the behaviour of the browser for all clients, they are only run for
+ * trusted callers and return {@link Bundle#EMPTY} otherwise.
+ */
+final class ExtraCommands {
+
+    static final int VERSION = 1;
+
+    static final String GET_STATS = "getStats";
+    static final String GET_LAUNCH_TRACE = "getLaunchTrace";
+    static final String GET_BINDER_STATS = "getBinderStats";
+    static final String TRIM_CACHES = "trimCaches";
+    static final String SET_SPECULATION_BUDGET = "setSpeculationBudget";
+
+    static final String KEY_VERSION = "version";
+
+    static final String STAT_SESSIONS = "sessions";
+    static final String STAT_WARMUPS = "warmups";
+    static final String STAT_SPECULATION_HITS = "speculationHits";
+    static final String STAT_SPECULATION_MISSES = "speculationMisses";
+    static final String STAT_SPECULATION_QUEUED = "speculationQueued";
+    static final String STAT_SPECULATION_REJECTED = "speculationRejected";
+    static final String STAT_ICON_CACHE_BYTES = "iconCacheBytes";
+    static final String STAT_POOLED_WEBVIEWS = "pooledWebViews";
+    static final String STAT_WEBVIEW_POOL_HITS = "webViewPoolHits";
+    static final String STAT_WEBVIEW_POOL_MISSES = "webViewPoolMisses";
+    static final String STAT_KEPT_TABS = "keptTabs";
+    static final String STAT_RESOURCE_CACHE_BYTES = "resourceCacheBytes";
+    static final String STAT_RESOURCE_CACHE_HITS = "resourceCacheHits";
+    static final String STAT_RESOURCE_CACHE_MISSES = "resourceCacheMisses";
+    static final String STAT_RESOURCE_CACHE_HIT_RATIO = "resourceCacheHitRatio";
+    static final String STAT_RESOURCE_CACHE_BYTES_SAVED = "resourceCacheBytesSaved";
+    static final String STAT_NAVIGATION_EVENTS = "navigationEvents";
+    static final String STAT_NAVIGATION_BINDER_CALLS = "navigationBinderCalls";
+    static final String STAT_LAUNCHES = "launches";
+    static final String STAT_MEAN_LAUNCH_LATENCY_MS = "meanLaunchLatencyMs";
+
+    static final String ARG_MAX_CONCURRENT_SPECULATIONS = "maxConcurrentSpeculations";
+    static final String ARG_MEMORY_CEILING_BYTES = "memoryCeilingBytes";
+    static final String ARG_PRERENDER_ENABLED = "prerenderEnabled";
+
+    private ExtraCommands() {
+    }
+
+    /**
+     * Runs the given command. Called on a binder thread.
+     *
+     * @param trusted whether the caller is signed with the same certificate as this app.
+     */
+    static Bundle handle(String commandName, Bundle args, boolean trusted) {
+        if (commandName == null) {
+            return Bundle.EMPTY;
+        }
+        Bundle result;
+        switch (commandName) {
+            case GET_STATS:
+                result = getStats();
+                break;
+            case GET_LAUNCH_TRACE:
+                result = LaunchTrace.toBundle();
+                break;
+            case GET_BINDER_STATS:
+                result = BinderStats.toBundle();
+                break;
+            case TRIM_CACHES:
+                if (!trusted) {
+                    return Bundle.EMPTY;
+                }
+                result = trimCaches();
+                break;
+            case SET_SPECULATION_BUDGET:
+                if (!trusted) {
+                    return Bundle.EMPTY;
+                }
+                result = setSpeculationBudget(args);
+                break;
+            default:
+                return Bundle.EMPTY;
+        }
+        result.putInt(KEY_VERSION, VERSION);
+        return result;
+    }
+
+    private static Bundle getStats() {
+        Bundle stats = new Bundle();
+        stats.putInt(STAT_SESSIONS, SessionRegistry.getInstance().size());
+        stats.putInt(STAT_WARMUPS, WarmupManager.getInstance().getWarmupCount());
+        SpeculationManager speculationManager = SpeculationManager.getInstance();
+        stats.putInt(STAT_SPECULATION_HITS, speculationManager.getHits());
+        stats.putInt(STAT_SPECULATION_MISSES, speculationManager.getMisses());
+        stats.putInt(STAT_SPECULATION_QUEUED, speculationManager.getQueued());
+        stats.putInt(STAT_SPECULATION_REJECTED, speculationManager.getRejected());
+        stats.putInt(STAT_ICON_CACHE_BYTES, IconCache.getInstance().sizeBytes());
+        WebViewPool webViewPool = WebViewPool.getInstance();
+        stats.putInt(STAT_POOLED_WEBVIEWS, webViewPool.getIdleCount());
+        stats.putInt(STAT_WEBVIEW_POOL_HITS, webViewPool.getHits());
+        stats.putInt(STAT_WEBVIEW_POOL_MISSES, webViewPool.getMisses());
+        stats.putInt(STAT_KEPT_TABS, TabManager.getInstance().getTabCount());
+        ResourceCache resourceCache = ResourceCache.getInstance();
+        int resourceCacheHits = resourceCache.getHits();
+        int resourceCacheRequests = resourceCacheHits + resourceCache.getMisses();
+        stats.putLong(STAT_RESOURCE_CACHE_BYTES, resourceCache.getSizeBytes());
+        stats.putInt(STAT_RESOURCE_CACHE_HITS, resourceCacheHits);
+        stats.putInt(STAT_RESOURCE_CACHE_MISSES, resourceCache.getMisses());
+        stats.putFloat(STAT_RESOURCE_CACHE_HIT_RATIO, resourceCacheRequests == 0
+                ? 0 : (float) resourceCacheHits / resourceCacheRequests);
+        stats.putLong(STAT_RESOURCE_CACHE_BYTES_SAVED, resourceCache.getBytesSaved());
+        stats.putInt(STAT_NAVIGATION_EVENTS, NavigationEventCoalescer.getEventCount());
+        stats.putInt(STAT_NAVIGATION_BINDER_CALLS, NavigationEventCoalescer.getBinderCallCount());
+        stats.putInt(STAT_LAUNCHES, LaunchTrace.getLaunchCount());
+        stats.putLong(STAT_MEAN_LAUNCH_LATENCY_MS, LaunchTrace.getMeanLaunchLatencyMs());
+        return stats;
+    }
+
+    private static Bundle trimCaches() {
+        IconCache.getInstance().trim();
+        ThreadUtils.runOnBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                ResourceCache.getInstance().trim();
+            }
+        });
+        ThreadUtils.postOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                TabManager.getInstance().trim();
+                WebViewPool.getInstance().trim();
+            }
+        });
+        return new Bundle();
+    }
+
+    private static Bundle setSpeculationBudget(Bundle args) {
+        Bundle result = new Bundle();
+        if (args == null) {
+            return result;
+        }
+        SpeculationManager speculationManager = SpeculationManager.getInstance();
+        int maxConcurrentSpeculations = args.getInt(ARG_MAX_CONCURRENT_SPECULATIONS, 0);
+        if (maxConcurrentSpeculations > 0) {
+            speculationManager.setMaxConcurrentSpeculations(maxConcurrentSpeculations);
+        }
+        if (args.containsKey(ARG_MEMORY_CEILING_BYTES)) {
+            speculationManager.setMemoryCeilingBytes(args.getLong(ARG_MEMORY_CEILING_BYTES));
+        }
+        if (args.containsKey(ARG_PRERENDER_ENABLED)) {
+            speculationManager.setPrerenderEnabled(args.getBoolean(ARG_PRERENDER_ENABLED));
+        }
+        return result;
+    }
+}
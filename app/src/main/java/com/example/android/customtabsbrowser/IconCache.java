@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+/**
+ * Prepares toolbar icons sent by clients. Icons are hashed by content and downscaled to the
+ * toolbar icon size on a background thread, and kept in an LRU cache bounded by bytes. Clients
+ * sending the same icon for every launch therefore share a single, small bitmap.
+ */
+class IconCache {
+
+    /**
+     * Receives prepared icons on the UI thread.
+     */
+    interface Listener {
+        void onIconReady(Bitmap icon);
+    }
+
+    private static final int MAX_CACHE_SIZE_BYTES = 4 * 1024 * 1024;
+
+    private static IconCache sInstance;
+
+    private final LruCache<Long, Bitmap> mCache;
+
+    static synchronized IconCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new IconCache();
+        }
+        return sInstance;
+    }
+
+    private IconCache() {
+        int maxSize = (int) Math.min(Runtime.getRuntime().maxMemory() / 32, MAX_CACHE_SIZE_BYTES);
+        mCache = new LruCache<Long, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Prepares the icon for display at the given size in pixels and passes it to the listener on
+     * the UI thread. Icons smaller than the given size are not scaled up.
+     */
+    void load(final Bitmap icon, final int size, final Listener listener) {
+        ThreadUtils.runOnBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap prepared = get(icon, size);
+                ThreadUtils.postOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onIconReady(prepared);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns the number of bytes held by the cache.
+     */
+    int sizeBytes() {
+        return mCache.size();
+    }
+
+    /**
+     * Drops all cached icons.
+     */
+    void trim() {
+        mCache.evictAll();
+    }
+
+    private Bitmap get(Bitmap icon, int size) {
+        Long key = hash(icon, size);
+        Bitmap cached = mCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        Bitmap scaled = scale(icon, size);
+        mCache.put(key, scaled);
+        return scaled;
+    }
+
+    private static Bitmap scale(Bitmap icon, int size) {
+        int width = icon.getWidth();
+        int height = icon.getHeight();
+        if (width <= size && height <= size) {
+            return icon;
+        }
+        float scale = (float) size / Math.max(width, height);
+        return Bitmap.createScaledBitmap(icon,
+                Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)),
+                true);
+    }
+
+    /**
+     * Returns a 64 bit FNV-1a hash of the icon's pixels and the size it is prepared for.
+     */
+    private static long hash(Bitmap icon, int size) {
+        int width = icon.getWidth();
+        int height = icon.getHeight();
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ size) * 0x100000001b3L;
+        hash = (hash ^ width) * 0x100000001b3L;
+        hash = (hash ^ height) * 0x100000001b3L;
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            icon.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                hash = (hash ^ row[x]) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lightweight tracing of the custom tab launch path, from the service being bound to the page
+ * being painted.
+ * <p/>
+ * Spans and events are recorded into preallocated ring buffers, so recording never allocates. The
+ * buffers are written from binder threads and the UI thread without locking: a slot being
+ * overwritten while it is dumped may show a mismatched name and timestamp, which is acceptable
+ * for tracing. Dumping allocates and is meant for {@code dumpsys}, logcat and the stats command.
+ */
+final class LaunchTrace {
+
+    private static final String TAG = "LaunchTrace";
+
+    static final int SERVICE_BIND = 0;
+    static final int WARMUP = 1;
+    static final int SPECULATION = 2;
+    static final int ACTIVITY_CREATE = 3;
+    static final int LAUNCH = 4;
+    static final int CALLBACK_SET_TITLE = 5;
+    static final int CALLBACK_SET_URL = 6;
+    static final int CALLBACK_SET_ACTION_BUTTON = 7;
+    static final int CALLBACK_SET_CLOSE_BUTTON = 8;
+    static final int CALLBACK_SET_TOOLBAR_COLOR = 9;
+    static final int LOAD_URL = 10;
+    static final int PAGE_STARTED = 11;
+    static final int PAGE_FINISHED = 12;
+    static final int FIRST_TITLE = 13;
+    static final int FIRST_PAINT = 14;
+    static final int CONTENT_VIEW = 15;
+    static final int DEFERRED_SETUP = 16;
+
+    private static final String[] NAMES = {
+            "serviceBind",
+            "warmup",
+            "speculation",
+            "onCreate",
+            "launch",
+            "setTitle",
+            "setUrl",
+            "setActionButton",
+            "setCloseButton",
+            "setToolbarColor",
+            "loadUrl",
+            "onPageStarted",
+            "onPageFinished",
+            "firstTitle",
+            "firstPaint",
+            "setContentView",
+            "deferredSetup",
+    };
+
+    private static final int PHASE_BEGIN = 0;
+    private static final int PHASE_END = 1;
+    private static final int PHASE_INSTANT = 2;
+    private static final String[] PHASES = {"begin", "end", "event"};
+
+    // Both capacities must be powers of two.
+    static final int EVENT_CAPACITY = 256;
+    static final int LATENCY_CAPACITY = 64;
+
+    private static final int[] sEvents = new int[EVENT_CAPACITY];
+    private static final long[] sEventTimesNanos = new long[EVENT_CAPACITY];
+    private static final AtomicInteger sEventCount = new AtomicInteger();
+
+    private static final long[] sLatenciesNanos = new long[LATENCY_CAPACITY];
+    private static final AtomicInteger sLatencyCount = new AtomicInteger();
+    private static volatile long sLaunchStartNanos;
+    private static volatile long sTotalLatencyNanos;
+
+    private LaunchTrace() {
+    }
+
+    /**
+     * Records the start of a span.
+     */
+    static void begin(int span) {
+        record(span, PHASE_BEGIN);
+    }
+
+    /**
+     * Records the end of a span.
+     */
+    static void end(int span) {
+        record(span, PHASE_END);
+    }
+
+    /**
+     * Records an instant event.
+     */
+    static void mark(int event) {
+        record(event, PHASE_INSTANT);
+    }
+
+    /**
+     * Marks the start of a custom tab launch. Must be called on the UI thread.
+     */
+    static void beginLaunch() {
+        sLaunchStartNanos = System.nanoTime();
+        record(ACTIVITY_CREATE, PHASE_BEGIN);
+    }
+
+    /**
+     * Marks the first paint of a custom tab launch and records the launch latency. Must be called
+     * on the UI thread.
+     */
+    static void endLaunch() {
+        long latency = System.nanoTime() - sLaunchStartNanos;
+        record(FIRST_PAINT, PHASE_INSTANT);
+        sLatenciesNanos[sLatencyCount.getAndIncrement() & (LATENCY_CAPACITY - 1)] = latency;
+        sTotalLatencyNanos += latency;
+    }
+
+    /**
+     * Returns the number of launches recorded since the process started.
+     */
+    static int getLaunchCount() {
+        return sLatencyCount.get();
+    }
+
+    /**
+     * Returns the mean launch latency in milliseconds or 0 if no launch has been recorded.
+     */
+    static long getMeanLaunchLatencyMs() {
+        int count = sLatencyCount.get();
+        return count == 0 ? 0 : sTotalLatencyNanos / count / 1000000;
+    }
+
+    /**
+     * Returns the given percentile of the latest launch latencies in milliseconds or 0 if no
+     * launch has been recorded.
+     */
+    static long getLaunchLatencyPercentileMs(int percentile) {
+        int count = Math.min(sLatencyCount.get(), LATENCY_CAPACITY);
+        if (count == 0) {
+            return 0;
+        }
+        long[] latencies = Arrays.copyOf(sLatenciesNanos, count);
+        Arrays.sort(latencies);
+        int index = Math.min(count - 1, (count * percentile + 99) / 100 - 1);
+        return latencies[Math.max(0, index)] / 1000000;
+    }
+
+    /**
+     * Writes the recorded events to logcat, oldest first, if debug logging is enabled for
+     * {@value #TAG}.
+     */
+    static void log() {
+        if (!Log.isLoggable(TAG, Log.DEBUG)) {
+            return;
+        }
+        int count = sEventCount.get();
+        int first = Math.max(0, count - EVENT_CAPACITY);
+        for (int i = first; i < count; i++) {
+            Log.i(TAG, format(i & (EVENT_CAPACITY - 1)));
+        }
+        Log.i(TAG, "launches=" + getLaunchCount() + " meanMs=" + getMeanLaunchLatencyMs()
+                + " p50Ms=" + getLaunchLatencyPercentileMs(50)
+                + " p95Ms=" + getLaunchLatencyPercentileMs(95));
+    }
+
+    /**
+     * Writes the recorded events, oldest first, and the launch latency summary.
+     */
+    static void dump(PrintWriter writer) {
+        writer.println("Launch trace:");
+        int count = sEventCount.get();
+        int first = Math.max(0, count - EVENT_CAPACITY);
+        for (int i = first; i < count; i++) {
+            writer.println("  " + format(i & (EVENT_CAPACITY - 1)));
+        }
+        writer.println("  launches=" + getLaunchCount() + " meanMs=" + getMeanLaunchLatencyMs()
+                + " p50Ms=" + getLaunchLatencyPercentileMs(50)
+                + " p95Ms=" + getLaunchLatencyPercentileMs(95));
+    }
+
+    /**
+     * Returns the recorded events, oldest first, as parallel arrays of names and timestamps.
+     */
+    static Bundle toBundle() {
+        int count = sEventCount.get();
+        int first = Math.max(0, count - EVENT_CAPACITY);
+        String[] names = new String[count - first];
+        long[] timesNanos = new long[count - first];
+        for (int i = first; i < count; i++) {
+            int slot = i & (EVENT_CAPACITY - 1);
+            int event = sEvents[slot];
+            names[i - first] = NAMES[event >> 2] + ":" + PHASES[event & 3];
+            timesNanos[i - first] = sEventTimesNanos[slot];
+        }
+        Bundle bundle = new Bundle();
+        bundle.putStringArray("names", names);
+        bundle.putLongArray("timesNanos", timesNanos);
+        return bundle;
+    }
+
+    private static void record(int name, int phase) {
+        int slot = sEventCount.getAndIncrement() & (EVENT_CAPACITY - 1);
+        sEventTimesNanos[slot] = System.nanoTime();
+        sEvents[slot] = name << 2 | phase;
+    }
+
+    private static String format(int slot) {
+        int event = sEvents[slot];
+        return sEventTimesNanos[slot] / 1000 + "us " + NAMES[event >> 2] + " "
+                + PHASES[event & 3];
+    }
+}
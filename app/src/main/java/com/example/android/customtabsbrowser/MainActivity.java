@@ -15,16 +15,29 @@
  */
 package com.example.android.customtabsbrowser;
 
+import android.annotation.TargetApi;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.customtabs.CustomTabsCallback;
+import android.support.customtabs.CustomTabsIntent;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewStub;
 import android.view.Window;
 import android.webkit.WebChromeClient;
+import android.webkit.WebResourceError;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 import android.widget.Button;
@@ -40,47 +53,170 @@ public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
 
     private static final int MAX_TITLE_LENGTH = 20;
+    // Runs the deferred setup for pages which take long to paint or never do.
+    private static final long DEFERRED_SETUP_TIMEOUT_MS = 3000;
+
+    private static final int START_COLD = 0;
+    private static final int START_WARM = 1;
+    private static final int START_PRERENDERED = 2;
+    private static final int START_KEPT_TAB = 3;
+    private static final int START_RESTORED = 4;
+    private static final String[] START_TYPE_NAMES =
+            {"cold", "warm", "prerendered", "kept tab", "restored"};
+
+    private static final String KEY_SNAPSHOT_ID = "tabSnapshotId";
+
+    // Only cleared by the startup benchmark, to compare with loading the page on launch.
+    static boolean sLoadUrlEarly = true;
+
+    private long mCreateTime;
+    private int mStartType;
+    // The URL the WebView has already loaded, if it was prerendered or kept.
+    private String mPreloadedUrl;
+    // The URL the current tab was launched with.
+    private String mTabUrl;
+    // The URL the WebView started loading in onCreate, ahead of the launch.
+    private String mEarlyLoadUrl;
+    private boolean mLaunchPending;
+    // Identifies the snapshot of this activity's tab across process death.
+    private long mSnapshotId;
+    // The menu is only built once the page is shown.
+    private boolean mMenuReady;
+    private boolean mDeferredSetupDone;
+    private boolean mFirstPaintRecorded;
+    private boolean mFirstTitleRecorded;
 
     private WebView mBrowser;
+    private ViewGroup mWebViewContainer;
+    private WebChromeClient mWebChromeClient;
+    private WebViewClient mWebViewClient;
     private Toolbar mToolbar;
+    // Inflated from its stub when a client first asks for an action button.
     private ImageButton mActionButton;
     private TextView mUrlTextView;
     private TextView mTitleView;
+    // The shown title, mTitleView displays the first mTitleLength chars of mTitleChars.
+    private final char[] mTitleChars = new char[MAX_TITLE_LENGTH];
+    private int mTitleLength = -1;
     private CustomTabController mCustomTabController;
+    private SessionState mSession;
+    private ResourceInterceptor mResourceInterceptor;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        mCreateTime = SystemClock.elapsedRealtime();
+        LaunchTrace.beginLaunch();
         getWindow().requestFeature(Window.FEATURE_ACTIVITY_TRANSITIONS);
         mCustomTabController = new CustomTabController(
                 this,
                 new CustomTabControllerCallback());
+        // A recreated activity has already been counted as a launch.
+        attachSession(getIntent(), savedInstanceState == null);
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_main);
+        createWebViewClients();
+        mSnapshotId = savedInstanceState != null
+                ? savedInstanceState.getLong(KEY_SNAPSHOT_ID) : System.currentTimeMillis();
+        obtainTab(getIntent().getDataString());
+        if (savedInstanceState != null
+                && (mStartType == START_COLD || mStartType == START_WARM)) {
+            // Recreated without a kept tab, most likely after the process has been killed.
+            restoreSnapshot();
+        }
+        if (sLoadUrlEarly && mPreloadedUrl == null && mCustomTabController.hasCustomTabIntent()) {
+            // The page is the long pole of the launch, start loading it before building the UI.
+            LaunchTrace.begin(LaunchTrace.LOAD_URL);
+            mBrowser.loadUrl(mTabUrl);
+            LaunchTrace.end(LaunchTrace.LOAD_URL);
+            mEarlyLoadUrl = mTabUrl;
+        }
 
+        LaunchTrace.begin(LaunchTrace.CONTENT_VIEW);
+        setContentView(R.layout.activity_main);
         mToolbar = (Toolbar) findViewById(R.id.toolbar);
         setSupportActionBar(mToolbar);
         getSupportActionBar().setDisplayHomeAsUpEnabled(true);
-
-        mActionButton = (ImageButton) findViewById(R.id.actionButton);
         mUrlTextView = (TextView) findViewById(R.id.urlView);
         mTitleView = (TextView) findViewById(R.id.titleView);
+        mWebViewContainer = (ViewGroup) findViewById(R.id.webViewContainer);
+        attachTab();
+        LaunchTrace.end(LaunchTrace.CONTENT_VIEW);
+        ThreadUtils.postOnUiThreadDelayed(mDeferredSetup, DEFERRED_SETUP_TIMEOUT_MS);
+        mLaunchPending = true;
+        LaunchTrace.end(LaunchTrace.ACTIVITY_CREATE);
+    }
 
-        mBrowser = (WebView) findViewById(R.id.webView);
-        mBrowser.setWebChromeClient(new WebChromeClient() {
-            @Override
-            public void onReceivedTitle(WebView view, String title) {
-                mCustomTabController.onTitleChange(view.getTitle());
-            }
-        });
-        mBrowser.setWebViewClient(new WebViewClient());
-        mBrowser.getSettings().setJavaScriptEnabled(true);
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        ThreadUtils.removeFromUiThread(mDeferredSetup);
+        if (mSession != null) {
+            mSession.clearController(mCustomTabController);
+        }
+        if (isFinishing()) {
+            TabSnapshots.delete(this, mSnapshotId);
+        }
+        hideTab(mSession);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putLong(KEY_SNAPSHOT_ID, mSnapshotId);
+        if (mTabUrl != null) {
+            TabSnapshots.save(this, mSnapshotId, mTabUrl, mBrowser);
+        }
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        SessionState previousSession = mSession;
+        setIntent(intent);
+        mCustomTabController.onNewIntent(intent);
+        attachSession(intent, true);
+        if (mSession == null || mSession != previousSession) {
+            // Another session's tab, keep the current one for when its session comes back.
+            hideTab(previousSession);
+            showTab(intent.getDataString());
+        } else {
+            mTabUrl = intent.getDataString();
+        }
+        mLaunchPending = true;
+        if (mMenuReady) {
+            supportInvalidateOptionsMenu();
+        }
     }
 
     @Override
     protected void onStart() {
         super.onStart();
+        launchIfPending();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // onStart does not run for an intent delivered while the activity is only paused.
+        launchIfPending();
+    }
+
+    /**
+     * Launches the current intent once, so that coming back to the activity shows the page as
+     * it was left instead of reloading it.
+     */
+    private void launchIfPending() {
+        if (!mLaunchPending) {
+            return;
+        }
+        mLaunchPending = false;
         if (mCustomTabController.hasCustomTabIntent()) {
+            LaunchTrace.begin(LaunchTrace.LAUNCH);
             mCustomTabController.launch();
+            LaunchTrace.end(LaunchTrace.LAUNCH);
+            Bundle visuals = mSession != null ? mSession.getVisuals() : null;
+            if (visuals != null) {
+                mCustomTabController.updateVisuals(visuals);
+            }
         } else {
             Toast.makeText(this, R.string.error_no_custom_tab, Toast.LENGTH_LONG).show();
         }
@@ -94,6 +230,10 @@ public class MainActivity extends AppCompatActivity {
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
+        if (!mMenuReady) {
+            // Not shown for now, the menu is invalidated after first paint.
+            return false;
+        }
         mCustomTabController.updateMenu(menu);
         getMenuInflater().inflate(R.menu.menu_main, menu);
         return true;
@@ -111,21 +251,284 @@ public class MainActivity extends AppCompatActivity {
         return super.onOptionsItemSelected(item);
     }
 
+    private void attachSession(Intent intent, boolean newLaunch) {
+        if (mSession != null) {
+            mSession.clearController(mCustomTabController);
+        }
+        mSession = SessionRegistry.getInstance().get(intent);
+        if (mSession == null) {
+            return;
+        }
+        if (intent.hasExtra(CustomTabsIntent.EXTRA_ACTION_BUTTON_BUNDLE)) {
+            // The intent's own action button replaces the visuals sent before it. Visuals sent
+            // from now on are newer and still applied on launch.
+            mSession.setVisuals(null);
+        }
+        mSession.setController(mCustomTabController);
+        if (newLaunch) {
+            mSession.recordHit();
+            NavigationPredictor.getInstance()
+                    .recordLaunch(this, mSession.getPackageName(), intent.getData());
+        }
+    }
+
+    private void createWebViewClients() {
+        mWebChromeClient = new WebChromeClient() {
+            @Override
+            public void onReceivedTitle(WebView view, String title) {
+                if (!mFirstTitleRecorded) {
+                    mFirstTitleRecorded = true;
+                    LaunchTrace.mark(LaunchTrace.FIRST_TITLE);
+                }
+                mCustomTabController.onTitleChange(title);
+                if (mSession != null) {
+                    mSession.getNavigationEvents().onTitleChanged(title);
+                }
+            }
+        };
+        mResourceInterceptor = new ResourceInterceptor(this);
+        mWebViewClient = new WebViewClient() {
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view,
+                                                              WebResourceRequest request) {
+                // Called on a WebView network thread, from Lollipop onwards.
+                return mResourceInterceptor.intercept(request);
+            }
+
+            @Override
+            public void onPageStarted(WebView view, String url, Bitmap favicon) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    mResourceInterceptor.onPageStarted(view, url);
+                }
+                LaunchTrace.mark(LaunchTrace.PAGE_STARTED);
+                onNavigationEvent(CustomTabsCallback.NAVIGATION_STARTED);
+            }
+
+            @Override
+            public void onPageFinished(WebView view, String url) {
+                LaunchTrace.mark(LaunchTrace.PAGE_FINISHED);
+                onNavigationEvent(CustomTabsCallback.NAVIGATION_FINISHED);
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                    // onPageCommitVisible is not available, use the closest later signal.
+                    recordFirstPaint();
+                } else {
+                    // In case the page never became visible.
+                    scheduleDeferredSetup();
+                }
+            }
+
+            // Still the only error callback before M. From M onwards it is only called by the
+            // default implementation of the newer overload, which is overridden below.
+            @SuppressWarnings("deprecation")
+            @Override
+            public void onReceivedError(WebView view, int errorCode, String description,
+                                        String failingUrl) {
+                onMainFrameError();
+            }
+
+            @TargetApi(Build.VERSION_CODES.M)
+            @Override
+            public void onReceivedError(WebView view, WebResourceRequest request,
+                                        WebResourceError error) {
+                // Also reported for subresources, which do not fail the navigation.
+                if (request.isForMainFrame()) {
+                    onMainFrameError();
+                }
+            }
+
+            @Override
+            public void onPageCommitVisible(WebView view, String url) {
+                recordFirstPaint();
+            }
+        };
+    }
+
+    /**
+     * Shows the tab for the current session and URL.
+     */
+    private void showTab(String url) {
+        obtainTab(url);
+        attachTab();
+    }
+
+    /**
+     * Obtains the WebView of the tab for the current session and URL, reusing in order of
+     * preference the tab kept for the session, a prerendered WebView and a pooled one.
+     */
+    private void obtainTab(String url) {
+        mTabUrl = url;
+        mEarlyLoadUrl = null;
+        TabManager.Tab tab = mSession != null
+                ? TabManager.getInstance().take(mSession, this) : null;
+        if (tab != null) {
+            mStartType = START_KEPT_TAB;
+            mPreloadedUrl = tab.mLaunchUrl;
+            mBrowser = tab.mWebView;
+        } else {
+            mBrowser = mSession != null ? SpeculationManager.getInstance()
+                    .takePrerenderedWebView(this, mSession, url) : null;
+            if (mBrowser != null) {
+                mStartType = START_PRERENDERED;
+                mPreloadedUrl = url;
+            } else {
+                WebViewPool pool = WebViewPool.getInstance();
+                mStartType = pool.getIdleCount() > 0 ? START_WARM : START_COLD;
+                mPreloadedUrl = null;
+                mBrowser = pool.acquire(this);
+            }
+        }
+        mBrowser.setWebChromeClient(mWebChromeClient);
+        mBrowser.setWebViewClient(mWebViewClient);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // Kept and prerendered tabs have started their page without this activity.
+            mResourceInterceptor.onPageStarted(mBrowser, mBrowser.getUrl());
+        }
+    }
+
+    private void attachTab() {
+        mWebViewContainer.addView(mBrowser, new ViewGroup.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+    }
+
+    /**
+     * Restores the WebView state from the snapshot of this activity's tab, if it was saved for the
+     * same URL, so that the tab does not reload from the network.
+     */
+    private void restoreSnapshot() {
+        TabSnapshots.Snapshot snapshot = TabSnapshots.restore(this, mSnapshotId);
+        if (snapshot == null || !TextUtils.equals(snapshot.mLaunchUrl, mTabUrl)) {
+            return;
+        }
+        if (mBrowser.restoreState(snapshot.mWebViewState) != null) {
+            mStartType = START_RESTORED;
+            mPreloadedUrl = mTabUrl;
+        }
+    }
+
+    /**
+     * Keeps the current tab for the given session if it is still alive and the activity is not
+     * finishing, otherwise gives its WebView back to the pool.
+     */
+    private void hideTab(SessionState session) {
+        if (session != null && !session.isReleased() && !isFinishing()) {
+            TabManager.getInstance().keep(session, mBrowser, mTabUrl);
+        } else {
+            WebViewPool.getInstance().release(mBrowser);
+        }
+        mBrowser = null;
+    }
+
+    private void onMainFrameError() {
+        onNavigationEvent(CustomTabsCallback.NAVIGATION_FAILED);
+        scheduleDeferredSetup();
+    }
+
+    private void onNavigationEvent(int event) {
+        if (mSession != null) {
+            mSession.getNavigationEvents().onNavigationEvent(event);
+        }
+    }
+
+    private final Runnable mDeferredSetup = new Runnable() {
+        @Override
+        public void run() {
+            if (mDeferredSetupDone) {
+                return;
+            }
+            mDeferredSetupDone = true;
+            LaunchTrace.begin(LaunchTrace.DEFERRED_SETUP);
+            mMenuReady = true;
+            supportInvalidateOptionsMenu();
+            mCustomTabController.onFirstPaint();
+            LaunchTrace.end(LaunchTrace.DEFERRED_SETUP);
+        }
+    };
+
+    private void recordFirstPaint() {
+        if (mFirstPaintRecorded) {
+            return;
+        }
+        mFirstPaintRecorded = true;
+        scheduleDeferredSetup();
+        LaunchTrace.endLaunch();
+        LaunchTrace.log();
+        Log.i(TAG, "time to first paint: " + (SystemClock.elapsedRealtime() - mCreateTime)
+                + "ms (" + START_TYPE_NAMES[mStartType] + " start)");
+    }
+
+    /**
+     * Runs the setup the first frame did not need as soon as that frame is out, unless it has
+     * already run.
+     */
+    private void scheduleDeferredSetup() {
+        if (mDeferredSetupDone) {
+            return;
+        }
+        ThreadUtils.removeFromUiThread(mDeferredSetup);
+        ThreadUtils.postOnUiThread(mDeferredSetup);
+    }
+
+    private ImageButton getActionButton() {
+        if (mActionButton == null) {
+            mActionButton = (ImageButton) ((ViewStub) findViewById(R.id.actionButtonStub))
+                    .inflate();
+        }
+        return mActionButton;
+    }
+
     /**
      * Configures our webview-based browser tab based on the custom tab intent.
      */
     private class CustomTabControllerCallback implements CustomTabController.Callback {
         @Override
         public void setTitle(String title) {
-            if (title.length() > MAX_TITLE_LENGTH) {
-                title = title.substring(0, MAX_TITLE_LENGTH);
+            LaunchTrace.begin(LaunchTrace.CALLBACK_SET_TITLE);
+            int length = Math.min(title.length(), MAX_TITLE_LENGTH);
+            if (!isTitleShown(title, length)) {
+                // Truncates into the reused buffer, which the TextView reads from directly.
+                title.getChars(0, length, mTitleChars, 0);
+                mTitleLength = length;
+                mTitleView.setText(mTitleChars, 0, length);
             }
-            mTitleView.setText(title);
+            LaunchTrace.end(LaunchTrace.CALLBACK_SET_TITLE);
+        }
+
+        private boolean isTitleShown(String title, int length) {
+            if (length != mTitleLength) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (title.charAt(i) != mTitleChars[i]) {
+                    return false;
+                }
+            }
+            return true;
         }
 
         public void setUrl(String url) {
+            LaunchTrace.begin(LaunchTrace.CALLBACK_SET_URL);
             mUrlTextView.setText(url);
-            mBrowser.loadUrl(url);
+            boolean preloaded = url.equals(mPreloadedUrl);
+            // Only the first URL set after showing a tab can be the preloaded one.
+            mPreloadedUrl = null;
+            if (!preloaded) {
+                if (!url.equals(mEarlyLoadUrl)) {
+                    LaunchTrace.begin(LaunchTrace.LOAD_URL);
+                    mBrowser.loadUrl(url);
+                    LaunchTrace.end(LaunchTrace.LOAD_URL);
+                }
+                mEarlyLoadUrl = null;
+                LaunchTrace.end(LaunchTrace.CALLBACK_SET_URL);
+                return;
+            }
+            // The page has been loading in the background or was kept, reloading would throw
+            // that away.
+            recordFirstPaint();
+            String title = mBrowser.getTitle();
+            if (title != null) {
+                mCustomTabController.onTitleChange(title);
+            }
+            LaunchTrace.end(LaunchTrace.CALLBACK_SET_URL);
         }
 
         @Override
@@ -135,32 +538,55 @@ public class MainActivity extends AppCompatActivity {
 
         @Override
         public void setActionButtonOnClickListener(Button.OnClickListener onClickListener) {
-            mActionButton.setOnClickListener(onClickListener);
+            LaunchTrace.begin(LaunchTrace.CALLBACK_SET_ACTION_BUTTON);
+            getActionButton().setOnClickListener(onClickListener);
+            LaunchTrace.end(LaunchTrace.CALLBACK_SET_ACTION_BUTTON);
         }
 
         @Override
         public void setActionButtonImageDrawable(Drawable drawable) {
-            mActionButton.setImageDrawable(drawable);
+            LaunchTrace.begin(LaunchTrace.CALLBACK_SET_ACTION_BUTTON);
+            getActionButton().setImageDrawable(drawable);
+            LaunchTrace.end(LaunchTrace.CALLBACK_SET_ACTION_BUTTON);
         }
 
         @Override
         public void setActionButtonContentDescription(CharSequence description) {
-            mActionButton.setContentDescription(description);
+            LaunchTrace.begin(LaunchTrace.CALLBACK_SET_ACTION_BUTTON);
+            getActionButton().setContentDescription(description);
+            LaunchTrace.end(LaunchTrace.CALLBACK_SET_ACTION_BUTTON);
         }
 
         @Override
         public void setActionBarCloseDrawable(Drawable drawable) {
+            LaunchTrace.begin(LaunchTrace.CALLBACK_SET_CLOSE_BUTTON);
             getSupportActionBar().setHomeAsUpIndicator(drawable);
+            LaunchTrace.end(LaunchTrace.CALLBACK_SET_CLOSE_BUTTON);
         }
 
         @Override
         public void setActionBarBackgroundDrawable(Drawable drawable) {
+            LaunchTrace.begin(LaunchTrace.CALLBACK_SET_TOOLBAR_COLOR);
             mToolbar.setBackground(drawable);
+            LaunchTrace.end(LaunchTrace.CALLBACK_SET_TOOLBAR_COLOR);
+        }
+
+        @Override
+        public void setToolbarTextColor(int color) {
+            LaunchTrace.begin(LaunchTrace.CALLBACK_SET_TOOLBAR_COLOR);
+            mTitleView.setTextColor(color);
+            mUrlTextView.setTextColor(color);
+            LaunchTrace.end(LaunchTrace.CALLBACK_SET_TOOLBAR_COLOR);
         }
 
         @Override
         public void setActionButtonVisibility(int visibility) {
-            mActionButton.setVisibility(visibility);
+            if (visibility != View.VISIBLE && mActionButton == null) {
+                return;
+            }
+            LaunchTrace.begin(LaunchTrace.CALLBACK_SET_ACTION_BUTTON);
+            getActionButton().setVisibility(visibility);
+            LaunchTrace.end(LaunchTrace.CALLBACK_SET_ACTION_BUTTON);
         }
     }
 }
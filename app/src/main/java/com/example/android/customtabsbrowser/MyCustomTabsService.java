@@ -15,30 +15,51 @@
  */
 package com.example.android.customtabsbrowser;
 
+import android.content.Intent;
 import android.net.Uri;
+import android.os.Binder;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.support.customtabs.CustomTabsService;
 import android.support.customtabs.CustomTabsSessionToken;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.List;
 
 public class MyCustomTabsService extends CustomTabsService {
 
     private static final String TAG = "MyCustomTabsService";
 
+    @Override
+    public IBinder onBind(Intent intent) {
+        LaunchTrace.mark(LaunchTrace.SERVICE_BIND);
+        return super.onBind(intent);
+    }
+
     @Override
     protected boolean warmup(long flags) {
+        long start = BinderStats.begin();
         Log.i(TAG, "warming up the browser");
-        // TODO Warm up the browser process asynchronously.
-        return true;
+        boolean result = WarmupManager.getInstance().warmup(this);
+        BinderStats.end(BinderStats.WARMUP, start);
+        return result;
     }
 
     @Override
     protected boolean newSession(CustomTabsSessionToken sessionToken) {
-        // TODO create a new session.
+        long start = BinderStats.begin();
         Log.i(TAG, "starting a newSession: " + sessionToken);
-        return true;
+        int uid = Binder.getCallingUid();
+        CallerVerifier.Caller caller = CallerVerifier.getInstance().verify(this, uid);
+        boolean result = caller.isVerified();
+        if (result) {
+            SessionRegistry.getInstance().add(sessionToken, uid, caller.mPackageName);
+            NavigationPredictor.getInstance().speculate(this, caller.mPackageName);
+        }
+        BinderStats.end(BinderStats.NEW_SESSION, start);
+        return result;
     }
 
     @Override
@@ -46,27 +67,78 @@ public class MyCustomTabsService extends CustomTabsService {
                                    Uri url,
                                    Bundle extras,
                                    List<Bundle> otherLikelyBundles) {
-        // TODO tell the browser about a likely future navigation to a URL.
+        long start = BinderStats.begin();
         Log.i(TAG, "mayLaunchUrl: " + url);
-        return true;
+        SessionState session = getCallerSession(sessionToken);
+        boolean result = false;
+        if (session != null) {
+            session.recordHit();
+            LaunchTrace.begin(LaunchTrace.SPECULATION);
+            result = SpeculationManager.getInstance()
+                    .mayLaunchUrl(this, session, url, otherLikelyBundles);
+            LaunchTrace.end(LaunchTrace.SPECULATION);
+        }
+        BinderStats.end(BinderStats.MAY_LAUNCH_URL, start);
+        return result;
     }
 
     @Override
     protected Bundle extraCommand(String commandName, Bundle args) {
-        Log.i(TAG, "extraCommand: " + commandName);
-        return Bundle.EMPTY;
+        long start = BinderStats.begin();
+        CallerVerifier.Caller caller =
+                CallerVerifier.getInstance().verify(this, Binder.getCallingUid());
+        Bundle result = caller.isVerified()
+                ? ExtraCommands.handle(commandName, args, caller.mTrusted) : Bundle.EMPTY;
+        BinderStats.end(BinderStats.EXTRA_COMMAND, start);
+        return result;
     }
 
     @Override
     protected boolean updateVisuals(CustomTabsSessionToken customTabsSessionToken, Bundle bundle) {
-        // TODO Updates the visuals of custom tabs for the given session.
+        long start = BinderStats.begin();
         Log.i(TAG, "update visuals");
-        return true;
+        SessionState session = getCallerSession(customTabsSessionToken);
+        boolean result = false;
+        if (session != null) {
+            session.setVisuals(bundle);
+            CustomTabController controller = session.getController();
+            result = controller == null || controller.updateVisuals(bundle);
+        }
+        BinderStats.end(BinderStats.UPDATE_VISUALS, start);
+        return result;
     }
 
     @Override
     protected boolean cleanUpSession(CustomTabsSessionToken sessionToken) {
-        // TODO Called when the client side IBinder for this CustomTabsSessionToken is dead.
-        return super.cleanUpSession(sessionToken);
+        long start = BinderStats.begin();
+        Log.i(TAG, "cleaning up session: " + sessionToken);
+        SessionRegistry.getInstance().remove(sessionToken);
+        boolean result = super.cleanUpSession(sessionToken);
+        BinderStats.end(BinderStats.CLEAN_UP_SESSION, start);
+        return result;
+    }
+
+    /**
+     * Returns the given session if it was created by the calling client and the client is still
+     * verified, or null otherwise. Must be called on the binder thread of the call.
+     */
+    private SessionState getCallerSession(CustomTabsSessionToken sessionToken) {
+        SessionState session = SessionRegistry.getInstance().get(sessionToken);
+        if (session == null) {
+            return null;
+        }
+        int uid = Binder.getCallingUid();
+        if (session.getUid() != uid
+                || !CallerVerifier.getInstance().verify(this, uid).isVerified()) {
+            return null;
+        }
+        return session;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        SessionRegistry.getInstance().dump(writer);
+        LaunchTrace.dump(writer);
+        BinderStats.dump(writer);
     }
 }
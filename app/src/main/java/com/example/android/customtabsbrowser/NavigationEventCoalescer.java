@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.os.Bundle;
+import android.support.customtabs.CustomTabsCallback;
+import android.text.TextUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers the navigation events of a session's tab to its client, dropping the ones which carry
+ * no information so that fewer binder transactions are made than WebView callbacks.
+ * <p/>
+ * Repeated starts, as caused by redirects, are sent once, and a finish following a failure is
+ * dropped. Title changes are sent with {@link CustomTabsCallback#extraCallback} as
+ * {@value #EXTRA_CALLBACK_TITLE_CHANGED}, only if the title differs from the one last sent. Events
+ * are sent as they come, each in its own transaction: clients only understand one
+ * {@link CustomTabsCallback#onNavigationEvent} per event, and holding events back to batch them
+ * would only delay them. Must be used on the UI thread.
+ */
+class NavigationEventCoalescer {
+
+    static final String EXTRA_CALLBACK_TITLE_CHANGED = "titleChanged";
+    static final String KEY_TITLE = "title";
+
+    private static final int NO_EVENT = 0;
+
+    private static final AtomicInteger sEventCount = new AtomicInteger();
+    private static final AtomicInteger sBinderCallCount = new AtomicInteger();
+
+    private final SessionState mSession;
+    private String mSentTitle;
+    private int mLastEvent = NO_EVENT;
+
+    NavigationEventCoalescer(SessionState session) {
+        mSession = session;
+    }
+
+    /**
+     * Returns the number of navigation events and title changes reported by tabs.
+     */
+    static int getEventCount() {
+        return sEventCount.get();
+    }
+
+    /**
+     * Returns the number of binder calls made to deliver them.
+     */
+    static int getBinderCallCount() {
+        return sBinderCallCount.get();
+    }
+
+    /**
+     * Sends one of the {@link CustomTabsCallback} navigation events unless it is redundant.
+     */
+    void onNavigationEvent(int event) {
+        sEventCount.incrementAndGet();
+        if (event == CustomTabsCallback.NAVIGATION_STARTED && mLastEvent == event) {
+            return;
+        }
+        if (event == CustomTabsCallback.NAVIGATION_FINISHED
+                && mLastEvent == CustomTabsCallback.NAVIGATION_FAILED) {
+            return;
+        }
+        mLastEvent = event;
+        if (mSession.isReleased()) {
+            return;
+        }
+        mSession.getToken().getCallback().onNavigationEvent(event, null);
+        sBinderCallCount.incrementAndGet();
+    }
+
+    /**
+     * Sends the title of the page unless it has already been sent.
+     */
+    void onTitleChanged(String title) {
+        sEventCount.incrementAndGet();
+        if (title == null || TextUtils.equals(title, mSentTitle) || mSession.isReleased()) {
+            return;
+        }
+        mSentTitle = title;
+        Bundle args = new Bundle();
+        args.putString(KEY_TITLE, title);
+        mSession.getToken().getCallback().extraCallback(EXTRA_CALLBACK_TITLE_CHANGED, args);
+        sBinderCallCount.incrementAndGet();
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Learns which origins each client package launches and predicts the most likely ones when the
+ * client starts a new session, so they can be pre-resolved before the client calls
+ * {@link MyCustomTabsService#mayLaunchUrl} (or when it never does).
+ * <p/>
+ * Each launch bumps the score of its origin while all other origins of the package decay, and
+ * only a bounded number of origins and packages is kept. Launches are persisted to an append-only
+ * file which is replayed lazily on first use and compacted when it grows too large. The file is
+ * kept out of backups, and the history of a package is forgotten when it is uninstalled. All
+ * state is confined to the shared background thread.
+ */
+class NavigationPredictor {
+
+    private static final String TAG = "NavigationPredictor";
+
+    private static final String HISTORY_FILE = "navigation_history";
+    private static final int MAX_PACKAGES = 32;
+    private static final int MAX_ORIGINS_PER_PACKAGE = 16;
+    static final int MAX_PREDICTIONS = 3;
+    static final int MAX_LOG_RECORDS = 1024;
+    static final float DECAY = 0.9f;
+    static final float MIN_PREDICTION_SCORE = 0.5f;
+
+    private static NavigationPredictor sInstance;
+
+    private final HashMap<String, ArrayList<OriginScore>> mHistory =
+            new HashMap<String, ArrayList<OriginScore>>();
+    private File mHistoryFile;
+    private int mLogRecords;
+
+    static synchronized NavigationPredictor getInstance() {
+        if (sInstance == null) {
+            sInstance = new NavigationPredictor();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Records a launch of the given URL by a client package.
+     */
+    void recordLaunch(Context context, final String packageName, Uri url) {
+        final String origin = getOrigin(url);
+        if (packageName == null || origin == null) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        ThreadUtils.runOnBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded(appContext);
+                record(packageName, origin);
+                append(packageName, origin);
+            }
+        });
+    }
+
+    /**
+     * Pre-resolves the origins the given client package is most likely to launch.
+     */
+    void speculate(Context context, final String packageName) {
+        if (packageName == null) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        ThreadUtils.runOnBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded(appContext);
+                List<Uri> origins = predict(packageName);
+                if (!origins.isEmpty()) {
+                    SpeculationManager.getInstance()
+                            .preresolveLikelyOrigins(packageName, origins);
+                }
+            }
+        });
+    }
+
+    /**
+     * Forgets the launches of an uninstalled package.
+     */
+    void forgetPackage(Context context, final String packageName) {
+        final Context appContext = context.getApplicationContext();
+        ThreadUtils.runOnBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded(appContext);
+                forget(packageName);
+            }
+        });
+    }
+
+    /**
+     * Returns the origin of an http(s) URL or null for other URLs.
+     */
+    static String getOrigin(Uri url) {
+        if (url == null || url.getHost() == null) {
+            return null;
+        }
+        String scheme = url.getScheme();
+        if (!"http".equals(scheme) && !"https".equals(scheme)) {
+            return null;
+        }
+        int port = url.getPort();
+        return scheme + "://" + url.getHost() + (port != -1 ? ":" + port : "");
+    }
+
+    /**
+     * Returns the origins the given package is most likely to launch, most likely first.
+     */
+    List<Uri> predict(String packageName) {
+        ArrayList<Uri> predictions = new ArrayList<Uri>(MAX_PREDICTIONS);
+        ArrayList<OriginScore> origins = mHistory.get(packageName);
+        if (origins == null) {
+            return predictions;
+        }
+        boolean[] taken = new boolean[origins.size()];
+        for (int i = 0; i < MAX_PREDICTIONS; i++) {
+            int best = -1;
+            for (int j = 0; j < origins.size(); j++) {
+                if (!taken[j] && origins.get(j).mScore >= MIN_PREDICTION_SCORE
+                        && (best == -1 || origins.get(j).mScore > origins.get(best).mScore)) {
+                    best = j;
+                }
+            }
+            if (best == -1) {
+                break;
+            }
+            taken[best] = true;
+            predictions.add(Uri.parse(origins.get(best).mOrigin));
+        }
+        return predictions;
+    }
+
+    /**
+     * Updates the scores of the given package's origins for a launch of the given origin.
+     */
+    void record(String packageName, String origin) {
+        ArrayList<OriginScore> origins = mHistory.get(packageName);
+        if (origins == null) {
+            if (mHistory.size() >= MAX_PACKAGES) {
+                evictPackage();
+            }
+            origins = new ArrayList<OriginScore>();
+            mHistory.put(packageName, origins);
+        }
+        OriginScore launched = null;
+        int weakest = -1;
+        for (int i = 0; i < origins.size(); i++) {
+            OriginScore score = origins.get(i);
+            score.mScore *= DECAY;
+            if (score.mOrigin.equals(origin)) {
+                launched = score;
+            } else if (weakest == -1 || score.mScore < origins.get(weakest).mScore) {
+                weakest = i;
+            }
+        }
+        if (launched == null) {
+            if (origins.size() >= MAX_ORIGINS_PER_PACKAGE) {
+                origins.remove(weakest);
+            }
+            launched = new OriginScore(origin);
+            origins.add(launched);
+        }
+        launched.mScore += 1;
+    }
+
+    /**
+     * Drops the scores of the given package and rewrites the history file without it.
+     */
+    void forget(String packageName) {
+        if (mHistory.remove(packageName) != null) {
+            compact();
+        }
+    }
+
+    /**
+     * Drops the package with the lowest total score.
+     */
+    private void evictPackage() {
+        String weakestPackage = null;
+        float weakestScore = Float.MAX_VALUE;
+        for (String packageName : mHistory.keySet()) {
+            float total = 0;
+            for (OriginScore score : mHistory.get(packageName)) {
+                total += score.mScore;
+            }
+            if (total < weakestScore) {
+                weakestScore = total;
+                weakestPackage = packageName;
+            }
+        }
+        mHistory.remove(weakestPackage);
+    }
+
+    private void ensureLoaded(Context context) {
+        if (mHistoryFile != null) {
+            return;
+        }
+        load(new File(ContextCompat.getNoBackupFilesDir(context), HISTORY_FILE));
+    }
+
+    /**
+     * Replays the given history file, which later launches are appended to.
+     */
+    void load(File historyFile) {
+        mHistoryFile = historyFile;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mHistoryFile)));
+            while (true) {
+                String packageName = in.readUTF();
+                String origin = in.readUTF();
+                record(packageName, origin);
+                mLogRecords++;
+            }
+        } catch (FileNotFoundException e) {
+            // No history yet.
+        } catch (EOFException e) {
+            // End of the history, a truncated last record is dropped.
+        } catch (IOException e) {
+            Log.w(TAG, "could not read navigation history", e);
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Appends a launch to the history file, compacting it if it has grown too large.
+     */
+    void append(String packageName, String origin) {
+        if (mLogRecords >= MAX_LOG_RECORDS) {
+            compact();
+            return;
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(mHistoryFile, true));
+            out.writeUTF(packageName);
+            out.writeUTF(origin);
+            mLogRecords++;
+        } catch (IOException e) {
+            Log.w(TAG, "could not write navigation history", e);
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Rewrites the history file from the in-memory scores. Each package's origins are written
+     * once, weakest first, so that replaying the file preserves their ranking.
+     */
+    private void compact() {
+        File tempFile = new File(mHistoryFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        int records = 0;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            for (String packageName : mHistory.keySet()) {
+                ArrayList<OriginScore> origins = new ArrayList<OriginScore>(
+                        mHistory.get(packageName));
+                while (!origins.isEmpty()) {
+                    int weakest = 0;
+                    for (int i = 1; i < origins.size(); i++) {
+                        if (origins.get(i).mScore < origins.get(weakest).mScore) {
+                            weakest = i;
+                        }
+                    }
+                    out.writeUTF(packageName);
+                    out.writeUTF(origins.remove(weakest).mOrigin);
+                    records++;
+                }
+            }
+            out.close();
+        } catch (IOException e) {
+            Log.w(TAG, "could not compact navigation history", e);
+            close(out);
+            tempFile.delete();
+            return;
+        }
+        if (tempFile.renameTo(mHistoryFile)) {
+            mLogRecords = records;
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(TAG, "could not close navigation history", e);
+        }
+    }
+
+    private static class OriginScore {
+        final String mOrigin;
+        float mScore;
+
+        OriginScore(String origin) {
+            mOrigin = origin;
+        }
+    }
+}
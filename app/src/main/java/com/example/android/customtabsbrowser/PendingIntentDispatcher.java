@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.app.PendingIntent;
+import android.os.SystemClock;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the pending intents of menu items and the action button off the UI thread, so that a slow
+ * or busy client app cannot make a tap jank. Intents are sent one at a time, in the order of the
+ * taps, and repeated taps on the same item within {@link #DUPLICATE_TAP_WINDOW_MS} are dropped.
+ */
+class PendingIntentDispatcher {
+
+    /**
+     * Receives failures to send a pending intent on the UI thread.
+     */
+    interface ErrorListener {
+        void onSendFailed(PendingIntent.CanceledException e);
+    }
+
+    static final long DUPLICATE_TAP_WINDOW_MS = 500;
+
+    private static PendingIntentDispatcher sInstance;
+
+    private final Executor mExecutor;
+
+    // Only accessed on the UI thread.
+    private PendingIntent mLastPendingIntent;
+    private long mLastSendTimeMs;
+
+    static synchronized PendingIntentDispatcher getInstance() {
+        if (sInstance == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    ThreadUtils.newThreadFactory("pendingIntents"));
+            executor.allowCoreThreadTimeOut(true);
+            sInstance = new PendingIntentDispatcher(executor);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param executor runs the sends. Must run one task at a time, in order.
+     */
+    PendingIntentDispatcher(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Sends the pending intent in the background, unless the same intent has just been sent. Must
+     * be called on the UI thread.
+     */
+    void send(final PendingIntent pendingIntent, final ErrorListener listener) {
+        long now = SystemClock.uptimeMillis();
+        if (pendingIntent.equals(mLastPendingIntent)
+                && now - mLastSendTimeMs < DUPLICATE_TAP_WINDOW_MS) {
+            return;
+        }
+        mLastPendingIntent = pendingIntent;
+        mLastSendTimeMs = now;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pendingIntent.send();
+                } catch (final PendingIntent.CanceledException e) {
+                    ThreadUtils.postOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onSendFailed(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+}
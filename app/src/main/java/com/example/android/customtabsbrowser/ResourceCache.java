@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache of subresources served to custom tabs by {@link ResourceInterceptor}.
+ * <p/>
+ * Response bodies are stored in content addressed files named after their SHA-1, so identical
+ * bodies served under different URLs are stored once. An index maps URLs to bodies and their
+ * validators; it is loaded lazily on first use, kept in LRU order and written back on the
+ * background thread after changes. Entries are evicted in LRU order once the bodies exceed the
+ * byte budget. Methods are called from the WebView's network threads and are thread-safe.
+ */
+class ResourceCache {
+
+    private static final String TAG = "ResourceCache";
+
+    static final long DEFAULT_MAX_SIZE_BYTES = 20 * 1024 * 1024;
+
+    private static final String CACHE_DIR = "resources";
+    private static final String INDEX_FILE = "index";
+    private static final int INDEX_VERSION = 1;
+
+    /**
+     * A cached response. Immutable apart from its freshness.
+     */
+    static final class Entry {
+        final String mUrl;
+        final String mContentHash;
+        final long mSize;
+        final String mContentType;
+        final String mHeaders;
+        final String mETag;
+        final String mLastModified;
+        volatile long mExpiresAt;
+
+        Entry(String url, String contentHash, long size, String contentType, String headers,
+              String eTag, String lastModified, long expiresAt) {
+            mUrl = url;
+            mContentHash = contentHash;
+            mSize = size;
+            mContentType = contentType;
+            mHeaders = headers;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mExpiresAt = expiresAt;
+        }
+
+        boolean isFresh(long now) {
+            return now < mExpiresAt;
+        }
+
+        boolean hasValidator() {
+            return mETag != null || mLastModified != null;
+        }
+    }
+
+    private static ResourceCache sInstance;
+
+    // Guarded by this.
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final HashMap<String, Integer> mContentRefs = new HashMap<String, Integer>();
+    private File mDirectory;
+    private long mSizeBytes;
+    private long mMaxSizeBytes = DEFAULT_MAX_SIZE_BYTES;
+
+    private final AtomicBoolean mIndexWritePending = new AtomicBoolean();
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicLong mBytesSaved = new AtomicLong();
+
+    static synchronized ResourceCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new ResourceCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the entry for the given URL or null, loading the index from the given cache
+     * directory if needed.
+     */
+    synchronized Entry get(File cacheDir, String url) {
+        ensureLoaded(cacheDir);
+        return mEntries.get(url);
+    }
+
+    /**
+     * Returns the file holding the body of the given entry.
+     */
+    synchronized File getFile(Entry entry) {
+        return new File(mDirectory, entry.mContentHash);
+    }
+
+    /**
+     * Returns a new temporary file in the cache directory to download a body into.
+     */
+    synchronized File createTempFile(File cacheDir) throws IOException {
+        ensureLoaded(cacheDir);
+        return File.createTempFile("download", ".tmp", mDirectory);
+    }
+
+    /**
+     * Stores a downloaded body under its content hash and maps the entry's URL to it, replacing
+     * a previous entry for the same URL. The temporary body file is consumed.
+     *
+     * @return false if the body could not be stored.
+     */
+    boolean put(Entry entry, File body) {
+        synchronized (this) {
+            if (entry.mSize > mMaxSizeBytes / 8) {
+                body.delete();
+                return false;
+            }
+            File content = new File(mDirectory, entry.mContentHash);
+            if (content.exists()) {
+                body.delete();
+            } else if (!body.renameTo(content)) {
+                body.delete();
+                return false;
+            }
+            // Referenced before the previous entry is released, which may share the content.
+            Integer refs = mContentRefs.get(entry.mContentHash);
+            if (refs == null) {
+                mSizeBytes += entry.mSize;
+                mContentRefs.put(entry.mContentHash, 1);
+            } else {
+                mContentRefs.put(entry.mContentHash, refs + 1);
+            }
+            Entry previous = mEntries.put(entry.mUrl, entry);
+            if (previous != null) {
+                unref(previous);
+            }
+            evict();
+        }
+        scheduleIndexWrite();
+        return true;
+    }
+
+    /**
+     * Extends the freshness of an entry after a successful revalidation.
+     */
+    void refresh(Entry entry, long expiresAt) {
+        entry.mExpiresAt = expiresAt;
+        scheduleIndexWrite();
+    }
+
+    /**
+     * Drops the entry for the given URL.
+     */
+    void remove(String url) {
+        synchronized (this) {
+            Entry entry = mEntries.remove(url);
+            if (entry == null) {
+                return;
+            }
+            unref(entry);
+        }
+        scheduleIndexWrite();
+    }
+
+    /**
+     * Sets the byte budget of the bodies, evicting the least recently used entries above it.
+     */
+    void setMaxSizeBytes(long maxSizeBytes) {
+        synchronized (this) {
+            mMaxSizeBytes = maxSizeBytes;
+            evict();
+        }
+        scheduleIndexWrite();
+    }
+
+    /**
+     * Drops all entries and their bodies.
+     */
+    void trim() {
+        synchronized (this) {
+            if (mDirectory == null) {
+                return;
+            }
+            for (Entry entry : mEntries.values()) {
+                unref(entry);
+            }
+            mEntries.clear();
+        }
+        scheduleIndexWrite();
+    }
+
+    void recordHit(long bytesSaved) {
+        mHits.incrementAndGet();
+        mBytesSaved.addAndGet(bytesSaved);
+    }
+
+    void recordMiss() {
+        mMisses.incrementAndGet();
+    }
+
+    int getHits() {
+        return mHits.get();
+    }
+
+    int getMisses() {
+        return mMisses.get();
+    }
+
+    long getBytesSaved() {
+        return mBytesSaved.get();
+    }
+
+    synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mSizeBytes > mMaxSizeBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            unref(eldest);
+        }
+    }
+
+    private void unref(Entry entry) {
+        Integer refs = mContentRefs.get(entry.mContentHash);
+        if (refs == null) {
+            return;
+        }
+        if (refs > 1) {
+            mContentRefs.put(entry.mContentHash, refs - 1);
+            return;
+        }
+        mContentRefs.remove(entry.mContentHash);
+        mSizeBytes -= entry.mSize;
+        new File(mDirectory, entry.mContentHash).delete();
+    }
+
+    private void ensureLoaded(File cacheDir) {
+        if (mDirectory != null) {
+            return;
+        }
+        mDirectory = new File(cacheDir, CACHE_DIR);
+        mDirectory.mkdirs();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(new File(mDirectory, INDEX_FILE))));
+            if (in.readInt() != INDEX_VERSION) {
+                throw new EOFException("unknown cache index version");
+            }
+            while (true) {
+                Entry entry = new Entry(in.readUTF(), in.readUTF(), in.readLong(),
+                        readNullableUTF(in), in.readUTF(), readNullableUTF(in),
+                        readNullableUTF(in), in.readLong());
+                if (!new File(mDirectory, entry.mContentHash).exists()) {
+                    continue;
+                }
+                mEntries.put(entry.mUrl, entry);
+                Integer refs = mContentRefs.get(entry.mContentHash);
+                if (refs == null) {
+                    mSizeBytes += entry.mSize;
+                }
+                mContentRefs.put(entry.mContentHash, refs == null ? 1 : refs + 1);
+            }
+        } catch (FileNotFoundException e) {
+            // Empty cache.
+        } catch (EOFException e) {
+            // End of the index.
+        } catch (IOException e) {
+            Log.w(TAG, "could not read the cache index", e);
+        } finally {
+            close(in);
+        }
+        deleteUnreferencedFiles();
+    }
+
+    /**
+     * Deletes bodies no longer in the index and downloads interrupted by the process dying.
+     */
+    private void deleteUnreferencedFiles() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!INDEX_FILE.equals(name) && !mContentRefs.containsKey(name)) {
+                file.delete();
+            }
+        }
+    }
+
+    private void scheduleIndexWrite() {
+        if (!mIndexWritePending.compareAndSet(false, true)) {
+            return;
+        }
+        ThreadUtils.runOnBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                mIndexWritePending.set(false);
+                writeIndex();
+            }
+        });
+    }
+
+    private void writeIndex() {
+        ArrayList<Entry> entries;
+        File directory;
+        synchronized (this) {
+            // Written eldest first so that loading restores the LRU order.
+            entries = new ArrayList<Entry>(mEntries.values());
+            directory = mDirectory;
+        }
+        File tempFile = new File(directory, INDEX_FILE + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(INDEX_VERSION);
+            for (Entry entry : entries) {
+                out.writeUTF(entry.mUrl);
+                out.writeUTF(entry.mContentHash);
+                out.writeLong(entry.mSize);
+                writeNullableUTF(out, entry.mContentType);
+                out.writeUTF(entry.mHeaders);
+                writeNullableUTF(out, entry.mETag);
+                writeNullableUTF(out, entry.mLastModified);
+                out.writeLong(entry.mExpiresAt);
+            }
+            out.close();
+        } catch (IOException e) {
+            Log.w(TAG, "could not write the cache index", e);
+            close(out);
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(new File(directory, INDEX_FILE))) {
+            Log.w(TAG, "could not replace the cache index");
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(TAG, "could not close the cache index", e);
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+import android.webkit.CookieManager;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Serves static subresources of custom tabs (scripts, style sheets, images and fonts) from the
+ * {@link ResourceCache}, to be called from
+ * {@link WebViewClient#shouldInterceptRequest(android.webkit.WebView, WebResourceRequest)}.
+ * <p/>
+ * Fresh entries are served from disk, large ones through a memory mapping. Stale entries with a
+ * validator are revalidated with a conditional request. Misses are fetched with
+ * {@link HttpURLConnection} and streamed to the WebView as they arrive, while a
+ * {@link CachingInputStream} copies them into the cache if the response allows it. Response
+ * bodies are never materialized on the Java heap. Navigations, non-GET and range requests are
+ * left to the WebView, and so are redirects: followed here, they would serve the target's body
+ * under the original URL. Any failure returns null, which lets the WebView load the resource
+ * itself.
+ * <p/>
+ * Cookies follow the policy of the tab's WebView: unless it accepts third-party cookies,
+ * requests to other sites than the page's are made without cookies and their cookies are not
+ * stored. Sites are approximated by hosts, a host and its subdomains being the same site.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class ResourceInterceptor {
+
+    private static final String TAG = "ResourceInterceptor";
+
+    private static final String[] STATIC_EXTENSIONS = {
+            ".js", ".css", ".png", ".jpg", ".jpeg", ".gif", ".webp", ".svg", ".ico",
+            ".woff", ".woff2", ".ttf",
+    };
+    // Headers handled by HttpURLConnection or by this class.
+    private static final String[] SKIPPED_HEADERS = {
+            "accept-encoding", "content-encoding", "content-length", "transfer-encoding",
+            "connection", "set-cookie",
+    };
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final int MAX_URL_LENGTH = 2048;
+    private static final int MAX_HEADERS_LENGTH = 8192;
+    // Smaller files are cheaper to read than to map.
+    private static final long MIN_MAPPED_SIZE_BYTES = 64 * 1024;
+
+    private final File mCacheDir;
+    // The host of the page shown and the cookie policy of its WebView, set on the UI thread.
+    private volatile String mPageHost;
+    private volatile boolean mAcceptThirdPartyCookies;
+
+    ResourceInterceptor(Context context) {
+        mCacheDir = context.getApplicationContext().getCacheDir();
+    }
+
+    /**
+     * Notes the page shown by the given WebView, which decides which requests are third party.
+     * Must be called on the UI thread when the tab is shown and whenever its main frame
+     * navigates.
+     */
+    void onPageStarted(WebView webView, String url) {
+        mPageHost = url != null ? Uri.parse(url).getHost() : null;
+        mAcceptThirdPartyCookies = CookieManager.getInstance().acceptThirdPartyCookies(webView);
+    }
+
+    /**
+     * Returns the response for the given request or null to let the WebView load it.
+     */
+    WebResourceResponse intercept(WebResourceRequest request) {
+        if (request.isForMainFrame() || !"GET".equals(request.getMethod())) {
+            return null;
+        }
+        Uri uri = request.getUrl();
+        String url = uri.toString();
+        if (!isStaticResource(uri) || url.length() > MAX_URL_LENGTH
+                || hasHeader(request.getRequestHeaders(), "range")) {
+            return null;
+        }
+        ResourceCache cache = ResourceCache.getInstance();
+        ResourceCache.Entry entry = cache.get(mCacheDir, url);
+        long now = System.currentTimeMillis();
+        if (entry != null && entry.isFresh(now)) {
+            return serveCached(entry);
+        }
+        if (entry != null && !entry.hasValidator()) {
+            entry = null;
+        }
+        boolean useCookies = mAcceptThirdPartyCookies || isSameSite(uri.getHost(), mPageHost);
+        HttpURLConnection connection = null;
+        try {
+            connection = open(url, request.getRequestHeaders(), entry, useCookies);
+            int status = connection.getResponseCode();
+            if (entry != null && status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                long expiresAt = getExpiresAt(connection, now);
+                connection.disconnect();
+                cache.refresh(entry, Math.max(expiresAt, now));
+                return serveCached(entry);
+            }
+            if (!isServable(status)) {
+                // Redirects, and 304s to the WebView's own conditional requests.
+                connection.disconnect();
+                return null;
+            }
+            cache.recordMiss();
+            return serveNetwork(url, connection, now, useCookies);
+        } catch (IOException e) {
+            Log.w(TAG, "could not load " + url, e);
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return null;
+        }
+    }
+
+    private WebResourceResponse serveCached(ResourceCache.Entry entry) {
+        ResourceCache cache = ResourceCache.getInstance();
+        File file = cache.getFile(entry);
+        InputStream data;
+        try {
+            data = entry.mSize >= MIN_MAPPED_SIZE_BYTES
+                    ? new MappedFileInputStream(file) : new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            cache.remove(entry.mUrl);
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "could not map " + file, e);
+            return null;
+        }
+        cache.recordHit(entry.mSize);
+        return newResponse(entry.mContentType, HttpURLConnection.HTTP_OK, "OK",
+                parseHeaders(entry.mHeaders), data);
+    }
+
+    private WebResourceResponse serveNetwork(final String url,
+                                             final HttpURLConnection connection,
+                                             final long now,
+                                             boolean useCookies) throws IOException {
+        if (useCookies) {
+            storeCookies(url, connection);
+        }
+        int status = connection.getResponseCode();
+        String reason = connection.getResponseMessage();
+        final String contentType = connection.getContentType();
+        final String headers = formatHeaders(connection.getHeaderFields());
+        final long expiresAt = getExpiresAt(connection, now);
+        boolean storable = status == HttpURLConnection.HTTP_OK
+                && connection.getHeaderField("Set-Cookie") == null
+                && headers.length() <= MAX_HEADERS_LENGTH
+                && (expiresAt > now || (expiresAt == now && hasValidator(connection)));
+        if (!storable) {
+            InputStream data = status >= HttpURLConnection.HTTP_BAD_REQUEST
+                    ? connection.getErrorStream() : connection.getInputStream();
+            return newResponse(contentType, status, reason, parseHeaders(headers), data);
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        final String eTag = connection.getHeaderField("ETag");
+        final String lastModified = connection.getHeaderField("Last-Modified");
+        final ResourceCache cache = ResourceCache.getInstance();
+        InputStream data = new CachingInputStream(connection.getInputStream(),
+                cache.createTempFile(mCacheDir), digest, new CachingInputStream.Listener() {
+                    @Override
+                    public void onComplete(File body, String contentHash, long size) {
+                        cache.put(new ResourceCache.Entry(url, contentHash, size, contentType,
+                                headers, eTag, lastModified, expiresAt), body);
+                    }
+                });
+        return newResponse(contentType, status, reason, parseHeaders(headers), data);
+    }
+
+    private static HttpURLConnection open(String url, Map<String, String> requestHeaders,
+                                          ResourceCache.Entry validated, boolean useCookies)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setUseCaches(false);
+        connection.setInstanceFollowRedirects(false);
+        for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+            if (!isSkipped(header.getKey())) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        String cookie = useCookies ? CookieManager.getInstance().getCookie(url) : null;
+        if (cookie != null) {
+            connection.setRequestProperty("Cookie", cookie);
+        }
+        if (validated != null) {
+            if (validated.mETag != null) {
+                connection.setRequestProperty("If-None-Match", validated.mETag);
+            }
+            if (validated.mLastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", validated.mLastModified);
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Returns until when the response may be served without revalidation, {@code now} if it
+     * must always be revalidated or -1 if it must not be stored.
+     */
+    static long getExpiresAt(HttpURLConnection connection, long now) {
+        String vary = connection.getHeaderField("Vary");
+        if (vary != null && !"accept-encoding".equals(vary.trim().toLowerCase(Locale.US))) {
+            return -1;
+        }
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            cacheControl = cacheControl.toLowerCase(Locale.US);
+            if (cacheControl.contains("no-store")) {
+                return -1;
+            }
+            if (cacheControl.contains("no-cache")) {
+                return now;
+            }
+            int maxAge = cacheControl.indexOf("max-age=");
+            if (maxAge != -1) {
+                int start = maxAge + "max-age=".length();
+                int end = start;
+                while (end < cacheControl.length() && Character.isDigit(cacheControl.charAt(end))) {
+                    end++;
+                }
+                try {
+                    return now + Long.parseLong(cacheControl.substring(start, end)) * 1000;
+                } catch (NumberFormatException e) {
+                    return now;
+                }
+            }
+        }
+        long expires = connection.getHeaderFieldDate("Expires", 0);
+        if (expires > 0) {
+            return Math.max(expires, now);
+        }
+        long lastModified = connection.getHeaderFieldDate("Last-Modified", 0);
+        if (lastModified > 0 && lastModified < now) {
+            // Heuristic freshness, see RFC 7234 section 4.2.2.
+            return now + (now - lastModified) / 10;
+        }
+        return now;
+    }
+
+    /**
+     * Returns true if a response with the given status can be handed to the WebView, which does
+     * not accept redirects or invalid statuses from {@link WebViewClient#shouldInterceptRequest}.
+     */
+    private static boolean isServable(int status) {
+        return status >= 100 && status <= 599
+                && (status < HttpURLConnection.HTTP_MULT_CHOICE
+                        || status >= HttpURLConnection.HTTP_BAD_REQUEST);
+    }
+
+    /**
+     * Returns true if both hosts are the same or one is a subdomain of the other.
+     */
+    static boolean isSameSite(String host, String pageHost) {
+        if (host == null || pageHost == null) {
+            return false;
+        }
+        host = host.toLowerCase(Locale.US);
+        pageHost = pageHost.toLowerCase(Locale.US);
+        return host.equals(pageHost) || host.endsWith("." + pageHost)
+                || pageHost.endsWith("." + host);
+    }
+
+    private static boolean hasValidator(HttpURLConnection connection) {
+        return connection.getHeaderField("ETag") != null
+                || connection.getHeaderField("Last-Modified") != null;
+    }
+
+    private static void storeCookies(String url, HttpURLConnection connection) {
+        List<String> cookies = connection.getHeaderFields().get("Set-Cookie");
+        if (cookies == null) {
+            return;
+        }
+        CookieManager cookieManager = CookieManager.getInstance();
+        for (String cookie : cookies) {
+            cookieManager.setCookie(url, cookie);
+        }
+    }
+
+    private static WebResourceResponse newResponse(String contentType, int status, String reason,
+                                                   Map<String, String> headers,
+                                                   InputStream data) {
+        String mimeType = null;
+        String encoding = null;
+        if (contentType != null) {
+            int separator = contentType.indexOf(';');
+            mimeType = (separator == -1 ? contentType : contentType.substring(0, separator)).trim();
+            int charset = contentType.toLowerCase(Locale.US).indexOf("charset=");
+            if (charset != -1) {
+                encoding = contentType.substring(charset + "charset=".length()).trim();
+            }
+        }
+        if (reason == null || reason.isEmpty()) {
+            reason = "OK";
+        }
+        return new WebResourceResponse(mimeType, encoding, status, reason, headers, data);
+    }
+
+    /**
+     * Serializes response headers as one "name: value" line per header, skipping headers which
+     * no longer apply to the decoded body.
+     */
+    private static String formatHeaders(Map<String, List<String>> headerFields) {
+        StringBuilder headers = new StringBuilder();
+        for (Map.Entry<String, List<String>> header : headerFields.entrySet()) {
+            if (header.getKey() == null || isSkipped(header.getKey())) {
+                continue;
+            }
+            headers.append(header.getKey()).append(": ");
+            List<String> values = header.getValue();
+            for (int i = 0; i < values.size(); i++) {
+                headers.append(i == 0 ? "" : ", ").append(values.get(i));
+            }
+            headers.append('\n');
+        }
+        return headers.toString();
+    }
+
+    private static Map<String, String> parseHeaders(String headers) {
+        HashMap<String, String> parsed = new HashMap<String, String>();
+        int start = 0;
+        while (start < headers.length()) {
+            int end = headers.indexOf('\n', start);
+            if (end == -1) {
+                end = headers.length();
+            }
+            int separator = headers.indexOf(": ", start);
+            if (separator != -1 && separator < end) {
+                parsed.put(headers.substring(start, separator),
+                        headers.substring(separator + 2, end));
+            }
+            start = end + 1;
+        }
+        return parsed;
+    }
+
+    private static boolean isStaticResource(Uri uri) {
+        String scheme = uri.getScheme();
+        String path = uri.getPath();
+        if (path == null || (!"http".equals(scheme) && !"https".equals(scheme))) {
+            return false;
+        }
+        path = path.toLowerCase(Locale.US);
+        for (String extension : STATIC_EXTENSIONS) {
+            if (path.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasHeader(Map<String, String> headers, String name) {
+        for (String key : headers.keySet()) {
+            if (name.equalsIgnoreCase(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSkipped(String header) {
+        for (String skipped : SKIPPED_HEADERS) {
+            if (skipped.equalsIgnoreCase(header)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.content.Intent;
+import android.support.customtabs.CustomTabsSessionToken;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static android.support.customtabs.CustomTabsIntent.EXTRA_SESSION;
+
+/**
+ * Keeps track of all live client sessions. Binder threads look up sessions without a lock, adding
+ * and removing sessions is serialized.
+ */
+class SessionRegistry {
+
+    private static SessionRegistry sInstance;
+
+    private final ConcurrentHashMap<CustomTabsSessionToken, SessionState> mSessions =
+            new ConcurrentHashMap<CustomTabsSessionToken, SessionState>();
+    private final AtomicInteger mAddedCount = new AtomicInteger();
+    private final AtomicInteger mRemovedCount = new AtomicInteger();
+
+    static synchronized SessionRegistry getInstance() {
+        if (sInstance == null) {
+            sInstance = new SessionRegistry();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Registers a new session. Returns the existing state if the session is already known.
+     */
+    synchronized SessionState add(CustomTabsSessionToken token, int uid, String packageName) {
+        SessionState existing = mSessions.get(token);
+        if (existing != null) {
+            return existing;
+        }
+        SessionState state = new SessionState(token, uid, packageName);
+        mSessions.put(token, state);
+        mAddedCount.incrementAndGet();
+        return state;
+    }
+
+    /**
+     * Returns the state for the given session or null if the session is unknown.
+     */
+    SessionState get(CustomTabsSessionToken token) {
+        return mSessions.get(token);
+    }
+
+    /**
+     * Returns the state for the session a custom tab intent was created for or null if the
+     * intent carries no known session.
+     */
+    SessionState get(Intent intent) {
+        if (!intent.hasExtra(EXTRA_SESSION)) {
+            return null;
+        }
+        // Tokens are equal if they wrap the same callback binder, the one sent with the intent.
+        CustomTabsSessionToken token = CustomTabsSessionToken.getSessionTokenFromIntent(intent);
+        return token != null ? mSessions.get(token) : null;
+    }
+
+    /**
+     * Removes the session and releases everything held by it.
+     *
+     * @return true if the session was known.
+     */
+    synchronized boolean remove(CustomTabsSessionToken token) {
+        SessionState state = mSessions.remove(token);
+        if (state == null) {
+            return false;
+        }
+        mRemovedCount.incrementAndGet();
+        state.release();
+        return true;
+    }
+
+    int size() {
+        return mSessions.size();
+    }
+
+    void dump(PrintWriter writer) {
+        // Any difference between the live sessions and added - removed is a lost or leaked session.
+        writer.println("Sessions: " + mSessions.size() + " added=" + mAddedCount.get()
+                + " removed=" + mRemovedCount.get());
+        for (SessionState state : mSessions.values()) {
+            state.dump(writer);
+        }
+    }
+}
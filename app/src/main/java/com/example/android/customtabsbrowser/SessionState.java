@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.customtabs.CustomTabsSessionToken;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State kept for a client session between {@link MyCustomTabsService#newSession} and
+ * {@link MyCustomTabsService#cleanUpSession}. Fields are read and written from binder threads
+ * and the UI thread without locking.
+ */
+class SessionState {
+
+    private final CustomTabsSessionToken mToken;
+    private final int mUid;
+    private final String mPackageName;
+    private final long mCreationTime = SystemClock.elapsedRealtime();
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicLong mBytesHeld = new AtomicLong();
+    private volatile String mSpeculatedUrl;
+    private volatile Bundle mVisuals;
+    private volatile CustomTabController mController;
+    private volatile boolean mReleased;
+    // Only used on the UI thread.
+    private final NavigationEventCoalescer mNavigationEvents = new NavigationEventCoalescer(this);
+
+    SessionState(CustomTabsSessionToken token, int uid, String packageName) {
+        mToken = token;
+        mUid = uid;
+        mPackageName = packageName;
+    }
+
+    CustomTabsSessionToken getToken() {
+        return mToken;
+    }
+
+    /**
+     * Returns the uid of the client which created this session.
+     */
+    int getUid() {
+        return mUid;
+    }
+
+    /**
+     * Returns the package name of the client which created this session or null if it is
+     * unknown.
+     */
+    String getPackageName() {
+        return mPackageName;
+    }
+
+    /**
+     * Returns the channel delivering the navigation events of this session's tab. Must be used on
+     * the UI thread.
+     */
+    NavigationEventCoalescer getNavigationEvents() {
+        return mNavigationEvents;
+    }
+
+    /**
+     * Counts a service call or a launch made for this session.
+     */
+    void recordHit() {
+        mHits.incrementAndGet();
+    }
+
+    int getHits() {
+        return mHits.get();
+    }
+
+    long getAgeMs() {
+        return SystemClock.elapsedRealtime() - mCreationTime;
+    }
+
+    /**
+     * Accounts for memory held on behalf of this session. Pass a negative delta when releasing it.
+     */
+    void addBytesHeld(long delta) {
+        mBytesHeld.addAndGet(delta);
+    }
+
+    long getBytesHeld() {
+        return mBytesHeld.get();
+    }
+
+    /**
+     * Returns the URL of the pending speculation for this session or null.
+     */
+    String getSpeculatedUrl() {
+        return mSpeculatedUrl;
+    }
+
+    void setSpeculatedUrl(String url) {
+        mSpeculatedUrl = url;
+    }
+
+    /**
+     * Returns the latest visuals override sent via {@link MyCustomTabsService#updateVisuals} or
+     * null.
+     */
+    Bundle getVisuals() {
+        return mVisuals;
+    }
+
+    void setVisuals(Bundle visuals) {
+        mVisuals = visuals;
+    }
+
+    /**
+     * Returns the controller of the custom tab currently showing this session or null.
+     */
+    CustomTabController getController() {
+        return mController;
+    }
+
+    void setController(CustomTabController controller) {
+        mController = controller;
+    }
+
+    /**
+     * Detaches the given controller if it is still attached to this session.
+     */
+    void clearController(CustomTabController controller) {
+        if (mController == controller) {
+            mController = null;
+        }
+    }
+
+    boolean isReleased() {
+        return mReleased;
+    }
+
+    /**
+     * Drops everything held by this session. Called once the session has been removed from the
+     * {@link SessionRegistry}.
+     */
+    void release() {
+        mReleased = true;
+        mSpeculatedUrl = null;
+        mVisuals = null;
+        mController = null;
+        SpeculationManager.getInstance().cancel(this);
+        TabManager.getInstance().discard(this);
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("  " + mToken + " uid=" + mUid + " package=" + mPackageName
+                + " age=" + getAgeMs() + "ms hits=" + getHits() + " bytesHeld=" + getBytesHeld()
+                + " speculatedUrl=" + mSpeculatedUrl);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per client package token buckets limiting the rate of speculative work. Each package may burst
+ * up to {@link #CAPACITY} tokens of work and is then limited to {@link #TOKENS_PER_SECOND}, so a
+ * single noisy client cannot monopolise the network and CPU.
+ * <p/>
+ * The buckets also hand out fair queueing rounds: each unit of work of a package is scheduled one
+ * round after its previous one, so packages with a lot of queued work run behind packages with
+ * little. Safe to call from any thread.
+ */
+class SpeculationLimiter {
+
+    /**
+     * The time source of the buckets, replaced in tests.
+     */
+    interface Clock {
+        long nanoTime();
+    }
+
+    static final int CAPACITY = 10;
+    static final int TOKENS_PER_SECOND = 2;
+
+    // Used for sessions whose package could not be determined.
+    private static final String UNKNOWN_PACKAGE = "";
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private static final class Bucket {
+        private double mTokens = CAPACITY;
+        private long mLastRefillNanos;
+        private long mLastRound;
+
+        Bucket(long nowNanos) {
+            mLastRefillNanos = nowNanos;
+        }
+
+        synchronized boolean tryAcquire(int tokens, long now) {
+            mTokens = Math.min(CAPACITY,
+                    mTokens + (now - mLastRefillNanos) * TOKENS_PER_SECOND / 1e9);
+            mLastRefillNanos = now;
+            if (mTokens < tokens) {
+                return false;
+            }
+            mTokens -= tokens;
+            return true;
+        }
+
+        synchronized long nextRound(long currentRound) {
+            mLastRound = Math.max(mLastRound, currentRound) + 1;
+            return mLastRound;
+        }
+    }
+
+    private final Clock mClock;
+    private final ConcurrentHashMap<String, Bucket> mBuckets =
+            new ConcurrentHashMap<String, Bucket>();
+    // The round of the latest work started, shared by all packages.
+    private volatile long mCurrentRound;
+
+    SpeculationLimiter() {
+        this(SYSTEM_CLOCK);
+    }
+
+    SpeculationLimiter(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Takes the given number of tokens from the bucket of the given package. Returns false,
+     * without taking any, if the package has not got enough tokens left.
+     */
+    boolean tryAcquire(String packageName, int tokens) {
+        return getBucket(packageName).tryAcquire(tokens, mClock.nanoTime());
+    }
+
+    /**
+     * Returns the round in which the next unit of work of the given package should run.
+     */
+    long nextRound(String packageName) {
+        return getBucket(packageName).nextRound(mCurrentRound);
+    }
+
+    /**
+     * Records that work of the given round has started.
+     */
+    void onStarted(long round) {
+        if (round > mCurrentRound) {
+            mCurrentRound = round;
+        }
+    }
+
+    private Bucket getBucket(String packageName) {
+        if (packageName == null) {
+            packageName = UNKNOWN_PACKAGE;
+        }
+        Bucket bucket = mBuckets.get(packageName);
+        if (bucket == null) {
+            Bucket newBucket = new Bucket(mClock.nanoTime());
+            bucket = mBuckets.putIfAbsent(packageName, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        return bucket;
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.MutableContextWrapper;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.customtabs.CustomTabsService;
+import android.text.TextUtils;
+import android.util.Log;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Acts on the hints given via {@link CustomTabsService#mayLaunchUrl}.
+ * <p/>
+ * The likely URL is pre-resolved with high priority and optionally prerendered in a hidden
+ * {@link WebView}, which {@link MainActivity} swaps in if the launched URL matches. Other likely
+ * URLs are pre-resolved with low priority. Speculation is bounded by a maximum number of
+ * concurrent lookups and a memory ceiling, and a new hint cancels the pending work of the
+ * previous hint of the same session.
+ * <p/>
+ * Each client package is rate limited by a {@link SpeculationLimiter}, work beyond its budget is
+ * rejected. Queued lookups run in priority order: the most likely URL of a session with a visible
+ * tab first, newest hint first, then the most likely URLs of other sessions, then the other
+ * likely URLs. Within a priority, packages take turns.
+ */
+class SpeculationManager {
+
+    private static final String TAG = "SpeculationManager";
+
+    static final int DEFAULT_MAX_CONCURRENT_SPECULATIONS = 2;
+    static final long DEFAULT_MEMORY_CEILING_BYTES = 32 * 1024 * 1024;
+
+    // Rough estimate of the memory held by a hidden WebView rendering a page.
+    private static final long PRERENDER_COST_BYTES = 20 * 1024 * 1024;
+    private static final int MAX_PENDING_SPECULATIONS = 8;
+    private static final int PRIORITY_FOREGROUND = 0;
+    private static final int PRIORITY_HIGH = 1;
+    private static final int PRIORITY_LOW = 2;
+    // Rate limiting tokens taken by each kind of speculation.
+    private static final int PRERESOLVE_TOKENS = 1;
+    private static final int PRERENDER_TOKENS = 4;
+
+    private static SpeculationManager sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final SpeculationLimiter mLimiter = new SpeculationLimiter();
+    private final AtomicInteger mQueued = new AtomicInteger();
+    private final AtomicInteger mRejected = new AtomicInteger();
+    private volatile long mMemoryCeilingBytes = DEFAULT_MEMORY_CEILING_BYTES;
+    private volatile boolean mPrerenderEnabled = true;
+
+    // Only accessed on the UI thread.
+    private WebView mPrerenderWebView;
+    private String mPrerenderUrl;
+    private SessionState mPrerenderSession;
+
+    static synchronized SpeculationManager getInstance() {
+        if (sInstance == null) {
+            sInstance = new SpeculationManager();
+        }
+        return sInstance;
+    }
+
+    private SpeculationManager() {
+        mExecutor = new ThreadPoolExecutor(
+                DEFAULT_MAX_CONCURRENT_SPECULATIONS,
+                DEFAULT_MAX_CONCURRENT_SPECULATIONS,
+                30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                ThreadUtils.newThreadFactory("speculation"));
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Speculates on a likely navigation. Replaces the pending speculation of a previous hint of
+     * the same session. Safe to call from any thread.
+     *
+     * @param session the session which gave the hint.
+     * @param url the most likely URL, may be null.
+     * @param otherLikelyBundles other likely URLs in decreasing order of priority, may be null.
+     * @return false if the hint was rejected because the client exceeded its rate limit.
+     */
+    boolean mayLaunchUrl(Context context, SessionState session, Uri url,
+                         List<Bundle> otherLikelyBundles) {
+        String packageName = session.getPackageName();
+        if (!mLimiter.tryAcquire(packageName, PRERESOLVE_TOKENS)) {
+            mRejected.incrementAndGet();
+            return false;
+        }
+        cancelPending(session);
+        session.setSpeculatedUrl(url != null ? url.toString() : null);
+        if (url != null) {
+            preresolve(session, packageName, url,
+                    session.getController() != null ? PRIORITY_FOREGROUND : PRIORITY_HIGH);
+        }
+        if (otherLikelyBundles != null) {
+            for (int i = 0; i < otherLikelyBundles.size(); i++) {
+                Uri otherUrl = otherLikelyBundles.get(i).getParcelable(CustomTabsService.KEY_URL);
+                if (otherUrl == null) {
+                    continue;
+                }
+                if (!mLimiter.tryAcquire(packageName, PRERESOLVE_TOKENS)) {
+                    mRejected.incrementAndGet();
+                    break;
+                }
+                preresolve(session, packageName, otherUrl, PRIORITY_LOW);
+            }
+        }
+        if (url == null || !mPrerenderEnabled || !canAffordPrerender(context)) {
+            cancelPrerender(session);
+        } else if (!mLimiter.tryAcquire(packageName, PRERENDER_TOKENS)) {
+            mRejected.incrementAndGet();
+            cancelPrerender(session);
+        } else {
+            prerender(context.getApplicationContext(), session, url.toString());
+        }
+        return true;
+    }
+
+    /**
+     * Pre-resolves origins predicted from past launches of the given package with low priority.
+     * Unlike {@link #mayLaunchUrl}, pending speculation is kept. Safe to call from any thread.
+     */
+    void preresolveLikelyOrigins(String packageName, List<Uri> origins) {
+        for (int i = 0; i < origins.size(); i++) {
+            if (!mLimiter.tryAcquire(packageName, PRERESOLVE_TOKENS)) {
+                mRejected.incrementAndGet();
+                return;
+            }
+            preresolve(null, packageName, origins.get(i), PRIORITY_LOW);
+        }
+    }
+
+    /**
+     * Cancels the speculation done on behalf of the given session.
+     */
+    void cancel(SessionState session) {
+        session.setSpeculatedUrl(null);
+        cancelPending(session);
+        cancelPrerender(session);
+    }
+
+    /**
+     * Hands out the prerendered WebView if it has been loading the given URL for the given
+     * session, attached to the given activity context. Returns null otherwise, a prerender is
+     * never handed to another client. Must be called on the UI thread.
+     */
+    WebView takePrerenderedWebView(Context activityContext, SessionState session, String url) {
+        if (mPrerenderWebView == null || session != mPrerenderSession
+                || !TextUtils.equals(mPrerenderUrl, url)) {
+            return null;
+        }
+        mHits.incrementAndGet();
+        WebView webView = mPrerenderWebView;
+        mPrerenderSession.addBytesHeld(-PRERENDER_COST_BYTES);
+        mPrerenderSession.setSpeculatedUrl(null);
+        mPrerenderWebView = null;
+        mPrerenderUrl = null;
+        mPrerenderSession = null;
+        ((MutableContextWrapper) webView.getContext()).setBaseContext(activityContext);
+        return webView;
+    }
+
+    /**
+     * Returns the number of prerendered WebViews used by a custom tab.
+     */
+    int getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * Returns the number of prerendered WebViews dropped without being used.
+     */
+    int getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * Returns the number of speculative lookups queued.
+     */
+    int getQueued() {
+        return mQueued.get();
+    }
+
+    /**
+     * Returns the number of hints, lookups and prerenders rejected because of rate limiting or a
+     * full queue.
+     */
+    int getRejected() {
+        return mRejected.get();
+    }
+
+    /**
+     * Sets the maximum number of speculative lookups running at the same time.
+     */
+    synchronized void setMaxConcurrentSpeculations(int maxConcurrentSpeculations) {
+        if (maxConcurrentSpeculations < 1) {
+            throw new IllegalArgumentException("at least one speculation must be allowed");
+        }
+        if (maxConcurrentSpeculations > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(maxConcurrentSpeculations);
+            mExecutor.setCorePoolSize(maxConcurrentSpeculations);
+        } else {
+            mExecutor.setCorePoolSize(maxConcurrentSpeculations);
+            mExecutor.setMaximumPoolSize(maxConcurrentSpeculations);
+        }
+    }
+
+    /**
+     * Sets the maximum amount of memory speculation may hold on to. Prerendering is skipped if it
+     * would exceed this budget.
+     */
+    void setMemoryCeilingBytes(long memoryCeilingBytes) {
+        mMemoryCeilingBytes = memoryCeilingBytes;
+    }
+
+    /**
+     * Enables or disables prerendering of the most likely URL.
+     */
+    void setPrerenderEnabled(boolean enabled) {
+        mPrerenderEnabled = enabled;
+        if (!enabled) {
+            cancelPrerender(null);
+        }
+    }
+
+    private void preresolve(SessionState session, String packageName, Uri url, int priority) {
+        String host = url.getHost();
+        if (TextUtils.isEmpty(host)) {
+            return;
+        }
+        if (priority == PRIORITY_LOW && mExecutor.getQueue().size() >= MAX_PENDING_SPECULATIONS) {
+            mRejected.incrementAndGet();
+            return;
+        }
+        mQueued.incrementAndGet();
+        mExecutor.execute(new PreresolveTask(session, host, priority,
+                mLimiter.nextRound(packageName), mSequence.incrementAndGet()));
+    }
+
+    /**
+     * Drops the lookups queued on behalf of the given session.
+     */
+    private void cancelPending(SessionState session) {
+        // Iterates over a snapshot of the queue.
+        for (Runnable task : mExecutor.getQueue()) {
+            if (((PreresolveTask) task).mSession == session) {
+                mExecutor.remove(task);
+            }
+        }
+    }
+
+    private boolean canAffordPrerender(Context context) {
+        if (PRERENDER_COST_BYTES > mMemoryCeilingBytes) {
+            return false;
+        }
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && activityManager.isLowRamDevice()) {
+            return false;
+        }
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        return !memoryInfo.lowMemory
+                && memoryInfo.availMem - memoryInfo.threshold > PRERENDER_COST_BYTES;
+    }
+
+    private void prerender(final Context appContext, final SessionState session,
+                           final String url) {
+        ThreadUtils.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (session.isReleased()) {
+                    return;
+                }
+                if (session == mPrerenderSession && url.equals(mPrerenderUrl)) {
+                    return;
+                }
+                if (mPrerenderWebView == null) {
+                    mPrerenderWebView = WebViewPool.createWebView(appContext);
+                    // Keeps navigations inside the hidden WebView instead of firing intents.
+                    mPrerenderWebView.setWebViewClient(new WebViewClient());
+                }
+                if (mPrerenderSession != null) {
+                    mPrerenderSession.addBytesHeld(-PRERENDER_COST_BYTES);
+                    mMisses.incrementAndGet();
+                }
+                session.addBytesHeld(PRERENDER_COST_BYTES);
+                mPrerenderSession = session;
+                mPrerenderUrl = url;
+                mPrerenderWebView.loadUrl(url);
+            }
+        });
+    }
+
+    /**
+     * Destroys the prerendering WebView if it is owned by the given session, or unconditionally if
+     * the session is null.
+     */
+    private void cancelPrerender(final SessionState session) {
+        ThreadUtils.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mPrerenderWebView == null) {
+                    return;
+                }
+                if (session != null && session != mPrerenderSession) {
+                    return;
+                }
+                mPrerenderSession.addBytesHeld(-PRERENDER_COST_BYTES);
+                mMisses.incrementAndGet();
+                mPrerenderWebView.destroy();
+                mPrerenderWebView = null;
+                mPrerenderUrl = null;
+                mPrerenderSession = null;
+            }
+        });
+    }
+
+    private class PreresolveTask implements Runnable, Comparable<PreresolveTask> {
+
+        // Null for lookups not triggered by a hint.
+        private final SessionState mSession;
+        private final String mHost;
+        private final int mPriority;
+        private final long mRound;
+        private final long mSequence;
+
+        PreresolveTask(SessionState session, String host, int priority, long round,
+                       long sequence) {
+            mSession = session;
+            mHost = host;
+            mPriority = priority;
+            mRound = round;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            mLimiter.onStarted(mRound);
+            try {
+                // Populates the system resolver cache shared with the WebView network stack.
+                InetAddress.getAllByName(mHost);
+            } catch (UnknownHostException e) {
+                Log.w(TAG, "could not resolve " + mHost);
+            }
+        }
+
+        @Override
+        public int compareTo(PreresolveTask other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            if (mPriority == PRIORITY_FOREGROUND) {
+                // The newest hint of a visible tab is the most relevant one.
+                return compare(other.mSequence, mSequence);
+            }
+            if (mRound != other.mRound) {
+                return compare(mRound, other.mRound);
+            }
+            return compare(mSequence, other.mSequence);
+        }
+
+        private int compare(long a, long b) {
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.MutableContextWrapper;
+import android.content.res.Configuration;
+import android.view.ViewGroup;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the tabs of live sessions around after their {@link MainActivity} is gone, one tab per
+ * session, so that reopening a tab for the same session shows the page as it was left instead of
+ * reloading it.
+ * <p/>
+ * Kept tabs are frozen: their WebView is detached from any window, so it does not render, paused
+ * and stripped of the activity's clients. Tabs are evicted in LRU order beyond the maximum number
+ * of tabs, when their session is cleaned up and when the system asks to trim memory. All methods
+ * must be called on the UI thread, apart from {@link #discard(SessionState)} and the counters.
+ */
+class TabManager implements ComponentCallbacks2 {
+
+    static final int DEFAULT_MAX_TABS = 3;
+
+    /**
+     * A frozen tab.
+     */
+    static final class Tab {
+        final WebView mWebView;
+        final String mLaunchUrl;
+
+        Tab(WebView webView, String launchUrl) {
+            mWebView = webView;
+            mLaunchUrl = launchUrl;
+        }
+    }
+
+    private static TabManager sInstance;
+
+    // In LRU order.
+    private final LinkedHashMap<SessionState, Tab> mTabs =
+            new LinkedHashMap<SessionState, Tab>(8, 0.75f, true);
+    private int mMaxTabs = DEFAULT_MAX_TABS;
+    private boolean mRegisteredForTrimMemory;
+    private volatile int mTabCount;
+
+    static synchronized TabManager getInstance() {
+        if (sInstance == null) {
+            sInstance = new TabManager();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Freezes the WebView of a tab and keeps it for the given session, replacing a tab previously
+     * kept for that session.
+     *
+     * @param launchUrl the URL the tab was launched with.
+     */
+    void keep(SessionState session, WebView webView, String launchUrl) {
+        if (!mRegisteredForTrimMemory) {
+            mRegisteredForTrimMemory = true;
+            webView.getContext().getApplicationContext().registerComponentCallbacks(this);
+        }
+        if (webView.getParent() != null) {
+            ((ViewGroup) webView.getParent()).removeView(webView);
+        }
+        Context appContext = webView.getContext().getApplicationContext();
+        ((MutableContextWrapper) webView.getContext()).setBaseContext(appContext);
+        webView.setWebChromeClient(null);
+        // Keeps navigations inside the WebView instead of firing intents.
+        webView.setWebViewClient(new WebViewClient());
+        webView.onPause();
+        Tab previous = mTabs.put(session, new Tab(webView, launchUrl));
+        if (previous != null) {
+            WebViewPool.getInstance().release(previous.mWebView);
+        }
+        Iterator<Tab> iterator = mTabs.values().iterator();
+        while (mTabs.size() > mMaxTabs) {
+            WebViewPool.getInstance().release(iterator.next().mWebView);
+            iterator.remove();
+        }
+        mTabCount = mTabs.size();
+    }
+
+    /**
+     * Returns the tab kept for the given session, thawed and attached to the given activity
+     * context, or null if there is none.
+     */
+    Tab take(SessionState session, Context activityContext) {
+        Tab tab = mTabs.remove(session);
+        if (tab == null) {
+            return null;
+        }
+        mTabCount = mTabs.size();
+        ((MutableContextWrapper) tab.mWebView.getContext()).setBaseContext(activityContext);
+        tab.mWebView.onResume();
+        return tab;
+    }
+
+    /**
+     * Drops the tab kept for a session which is gone. Safe to call from any thread.
+     */
+    void discard(final SessionState session) {
+        ThreadUtils.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Tab tab = mTabs.remove(session);
+                if (tab != null) {
+                    mTabCount = mTabs.size();
+                    WebViewPool.getInstance().release(tab.mWebView);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the maximum number of kept tabs, evicting the least recently used ones above it.
+     */
+    void setMaxTabs(int maxTabs) {
+        mMaxTabs = maxTabs;
+        destroyOldest(mTabs.size() - maxTabs);
+    }
+
+    /**
+     * Destroys all kept tabs.
+     */
+    void trim() {
+        destroyOldest(mTabs.size());
+    }
+
+    int getTabCount() {
+        return mTabCount;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            destroyOldest(mTabs.size());
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW && level < TRIM_MEMORY_UI_HIDDEN) {
+            destroyOldest((mTabs.size() + 1) / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        destroyOldest(mTabs.size());
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * Destroys the given number of least recently used tabs. Under memory pressure their
+     * WebViews are not handed to the {@link WebViewPool}, which trims itself.
+     */
+    private void destroyOldest(int count) {
+        Iterator<Tab> iterator = mTabs.values().iterator();
+        for (int i = 0; i < count && iterator.hasNext(); i++) {
+            iterator.next().mWebView.destroy();
+            iterator.remove();
+        }
+        mTabCount = mTabs.size();
+    }
+}
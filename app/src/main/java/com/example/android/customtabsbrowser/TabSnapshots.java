@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+import android.webkit.WebView;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persists the state of tabs so that they can be restored after the process has been killed in
+ * the background, instead of reloading their page from scratch.
+ * <p/>
+ * Each tab has its own snapshot file holding the URL it was launched with and the saved state of
+ * its WebView, which includes the back-forward list and the scroll position. Snapshots are
+ * captured on the UI thread and written on the background thread, only the tab being saved is
+ * rewritten. The WebView state is flattened with {@link Parcel#marshall()}, which is only
+ * readable by the same platform version; snapshots older than a day, which would rarely be
+ * restored anyway, are deleted.
+ * <p/>
+ * Snapshots are device specific and kept out of backups. Until it is written, the latest snapshot
+ * of a tab is also kept in memory, so that restoring right after saving, as when the activity is
+ * recreated, does not read a stale or missing file.
+ */
+class TabSnapshots {
+
+    private static final String TAG = "TabSnapshots";
+
+    private static final String SNAPSHOT_DIR = "tab_snapshots";
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final long MAX_SNAPSHOT_AGE_MS = 24 * 60 * 60 * 1000;
+
+    /**
+     * A restored snapshot.
+     */
+    static final class Snapshot {
+        final String mLaunchUrl;
+        final Bundle mWebViewState;
+
+        Snapshot(String launchUrl, Bundle webViewState) {
+            mLaunchUrl = launchUrl;
+            mWebViewState = webViewState;
+        }
+    }
+
+    // Snapshots not written yet, by id.
+    private static final ConcurrentHashMap<Long, Snapshot> sPending =
+            new ConcurrentHashMap<Long, Snapshot>();
+    // Only accessed on the background thread.
+    private static boolean sPruned;
+
+    private TabSnapshots() {
+    }
+
+    /**
+     * Captures the state of the given WebView and writes it in the background as the snapshot
+     * with the given id. Must be called on the UI thread.
+     */
+    static void save(Context context, final long id, final String launchUrl, WebView webView) {
+        Bundle state = new Bundle();
+        if (webView.saveState(state) == null) {
+            return;
+        }
+        Parcel parcel = Parcel.obtain();
+        final byte[] bytes;
+        try {
+            parcel.writeBundle(state);
+            bytes = parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+        final Snapshot snapshot = new Snapshot(launchUrl, state);
+        sPending.put(id, snapshot);
+        final File dir = getDirectory(context);
+        ThreadUtils.runOnBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!sPruned) {
+                    sPruned = true;
+                    prune(dir);
+                }
+                write(dir, id, launchUrl, bytes);
+                sPending.remove(id, snapshot);
+            }
+        });
+    }
+
+    /**
+     * Reads the snapshot with the given id. Returns null if there is none or it cannot be read.
+     * Reads synchronously, as the snapshot is needed before the tab starts loading, unless the
+     * snapshot has not been written yet.
+     */
+    static Snapshot restore(Context context, long id) {
+        Snapshot pending = sPending.get(id);
+        if (pending != null) {
+            return pending;
+        }
+        File file = new File(getDirectory(context), Long.toString(id));
+        DataInputStream in = null;
+        Parcel parcel = Parcel.obtain();
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != SNAPSHOT_VERSION) {
+                return null;
+            }
+            String launchUrl = in.readUTF();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            Bundle state = parcel.readBundle(WebView.class.getClassLoader());
+            return state != null ? new Snapshot(launchUrl, state) : null;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // A truncated or foreign snapshot, unmarshalling throws runtime exceptions.
+            Log.w(TAG, "could not read tab snapshot", e);
+            return null;
+        } finally {
+            parcel.recycle();
+            close(in);
+        }
+    }
+
+    /**
+     * Deletes the snapshot with the given id in the background.
+     */
+    static void delete(Context context, long id) {
+        sPending.remove(id);
+        final File file = new File(getDirectory(context), Long.toString(id));
+        ThreadUtils.runOnBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                file.delete();
+            }
+        });
+    }
+
+    private static File getDirectory(Context context) {
+        return new File(ContextCompat.getNoBackupFilesDir(context), SNAPSHOT_DIR);
+    }
+
+    private static void write(File dir, long id, String launchUrl, byte[] bytes) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "could not create " + dir);
+            return;
+        }
+        File file = new File(dir, Long.toString(id));
+        File tempFile = new File(dir, id + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeUTF(launchUrl);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.close();
+        } catch (IOException e) {
+            Log.w(TAG, "could not write tab snapshot", e);
+            close(out);
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+        }
+    }
+
+    private static void prune(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long oldest = System.currentTimeMillis() - MAX_SNAPSHOT_AGE_MS;
+        for (File file : files) {
+            if (file.lastModified() < oldest) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(TAG, "could not close tab snapshot", e);
+        }
+    }
+}
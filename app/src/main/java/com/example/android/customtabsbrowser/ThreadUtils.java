@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Helpers to move work between the UI thread and a shared, low priority background thread.
+ */
+final class ThreadUtils {
+
+    private static final Handler sUiThreadHandler = new Handler(Looper.getMainLooper());
+    private static final ExecutorService sBackgroundExecutor =
+            Executors.newSingleThreadExecutor(newThreadFactory("background"));
+
+    private ThreadUtils() {
+    }
+
+    /**
+     * Returns true if called from the UI thread.
+     */
+    static boolean runningOnUiThread() {
+        return Looper.getMainLooper() == Looper.myLooper();
+    }
+
+    /**
+     * Runs the task immediately if called from the UI thread, otherwise posts it to the UI thread.
+     */
+    static void runOnUiThread(Runnable task) {
+        if (runningOnUiThread()) {
+            task.run();
+        } else {
+            sUiThreadHandler.post(task);
+        }
+    }
+
+    /**
+     * Posts the task to the UI thread, even if called from the UI thread.
+     */
+    static void postOnUiThread(Runnable task) {
+        sUiThreadHandler.post(task);
+    }
+
+    /**
+     * Posts the task to the UI thread after the given delay.
+     */
+    static void postOnUiThreadDelayed(Runnable task, long delayMillis) {
+        sUiThreadHandler.postDelayed(task, delayMillis);
+    }
+
+    /**
+     * Removes a pending task posted via {@link #postOnUiThread(Runnable)}.
+     */
+    static void removeFromUiThread(Runnable task) {
+        sUiThreadHandler.removeCallbacks(task);
+    }
+
+    /**
+     * Runs the task on the shared background thread.
+     */
+    static void runOnBackgroundThread(Runnable task) {
+        sBackgroundExecutor.execute(task);
+    }
+
+    /**
+     * Returns a thread factory creating daemon threads running with background priority.
+     */
+    static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, name + "-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.graphics.Color;
+import android.util.SparseArray;
+
+/**
+ * Derives the status bar and text colors matching a toolbar color. Palettes are computed once per
+ * distinct toolbar color and cached, clients typically send the same color for every launch.
+ * Must be used on the UI thread.
+ */
+class ToolbarPalette {
+
+    private static final double STATUS_BAR_DARKEN_FRACTION = 0.25;
+    // Perceived brightness above which dark text is more readable than light text.
+    private static final int MAX_LIGHT_TEXT_BRIGHTNESS = 160;
+    private static final int MAX_CACHED_PALETTES = 64;
+
+    private static final SparseArray<ToolbarPalette> sCache =
+            new SparseArray<ToolbarPalette>(MAX_CACHED_PALETTES);
+
+    final int mToolbarColor;
+    final int mStatusBarColor;
+    final int mTextColor;
+
+    private ToolbarPalette(int toolbarColor) {
+        mToolbarColor = toolbarColor;
+        mStatusBarColor = darken(toolbarColor, STATUS_BAR_DARKEN_FRACTION);
+        mTextColor = brightness(toolbarColor) > MAX_LIGHT_TEXT_BRIGHTNESS
+                ? Color.BLACK : Color.WHITE;
+    }
+
+    /**
+     * Returns the palette for the given toolbar color.
+     */
+    static ToolbarPalette get(int toolbarColor) {
+        ToolbarPalette palette = sCache.get(toolbarColor);
+        if (palette == null) {
+            if (sCache.size() >= MAX_CACHED_PALETTES) {
+                // Callers rarely use more than a handful of colors, no need for LRU order.
+                sCache.clear();
+            }
+            palette = new ToolbarPalette(toolbarColor);
+            sCache.put(toolbarColor, palette);
+        }
+        return palette;
+    }
+
+    /**
+     * Returns the color the given fraction of the way from one color to another.
+     */
+    static int blend(int from, int to, float fraction) {
+        return Color.argb(
+                blendChannel(Color.alpha(from), Color.alpha(to), fraction),
+                blendChannel(Color.red(from), Color.red(to), fraction),
+                blendChannel(Color.green(from), Color.green(to), fraction),
+                blendChannel(Color.blue(from), Color.blue(to), fraction));
+    }
+
+    private static int blendChannel(int from, int to, float fraction) {
+        return from + Math.round((to - from) * fraction);
+    }
+
+    private static int darken(int color, double fraction) {
+        int red = Color.red(color);
+        int green = Color.green(color);
+        int blue = Color.blue(color);
+        red = darkenColor(red, fraction);
+        green = darkenColor(green, fraction);
+        blue = darkenColor(blue, fraction);
+        int alpha = Color.alpha(color);
+        return Color.argb(alpha, red, green, blue);
+    }
+
+    private static int darkenColor(int color, double fraction) {
+        return (int) Math.max(color - (color * fraction), 0);
+    }
+
+    private static int brightness(int color) {
+        return (Color.red(color) * 299 + Color.green(color) * 587 + Color.blue(color) * 114)
+                / 1000;
+    }
+}
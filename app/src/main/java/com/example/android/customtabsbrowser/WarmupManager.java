@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.WebSettings;
+import android.webkit.WebView;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Warms up the browser ahead of the first custom tab launch.
+ * <p/>
+ * The expensive parts are done once per process on a background thread: loading the WebView
+ * provider and priming the network stack. Each warmup then makes sure the {@link WebViewPool}
+ * holds an idle {@link WebView} on the UI thread (WebViews must be created on the thread they are
+ * used on) for the next {@link MainActivity} to pick up.
+ */
+class WarmupManager {
+
+    private static final String TAG = "WarmupManager";
+
+    private static WarmupManager sInstance;
+
+    private final AtomicBoolean mProcessWarmedUp = new AtomicBoolean();
+    private final AtomicInteger mWarmupCount = new AtomicInteger();
+    private volatile long mWarmupDurationMs = -1;
+
+    static synchronized WarmupManager getInstance() {
+        if (sInstance == null) {
+            sInstance = new WarmupManager();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts warming up the browser. Safe to call from any thread.
+     *
+     * @return true if the warmup has been started.
+     */
+    boolean warmup(Context context) {
+        mWarmupCount.incrementAndGet();
+        final Context appContext = context.getApplicationContext();
+        final long start = SystemClock.elapsedRealtime();
+        LaunchTrace.begin(LaunchTrace.WARMUP);
+        final Runnable prefill = new Runnable() {
+            @Override
+            public void run() {
+                WebViewPool.getInstance().prefill(appContext);
+                LaunchTrace.end(LaunchTrace.WARMUP);
+                mWarmupDurationMs = SystemClock.elapsedRealtime() - start;
+                Log.i(TAG, "warmup done in " + mWarmupDurationMs + "ms");
+            }
+        };
+        if (!mProcessWarmedUp.compareAndSet(false, true)) {
+            ThreadUtils.postOnUiThread(prefill);
+            return true;
+        }
+        ThreadUtils.runOnBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                initializeWebViewProvider(appContext);
+                primeNetwork(appContext);
+                ThreadUtils.postOnUiThread(prefill);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns the number of warmup requests since the process started.
+     */
+    int getWarmupCount() {
+        return mWarmupCount.get();
+    }
+
+    /**
+     * Returns how long the last warmup took in milliseconds or -1 if no warmup has completed.
+     */
+    long getWarmupDurationMs() {
+        return mWarmupDurationMs;
+    }
+
+    private static void initializeWebViewProvider(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return;
+        }
+        // Loads the WebView provider and its native library without creating a WebView.
+        WebSettings.getDefaultUserAgent(context);
+    }
+
+    private static void primeNetwork(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        // Binds the connectivity service and caches the active network for the first request.
+        connectivityManager.getActiveNetworkInfo();
+    }
+}
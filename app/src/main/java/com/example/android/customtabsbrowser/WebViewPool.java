@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.MutableContextWrapper;
+import android.content.res.Configuration;
+import android.view.ViewGroup;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import java.util.ArrayList;
+
+/**
+ * Process wide pool of configured {@link WebView}s. Creating a WebView is the most expensive part
+ * of opening a custom tab, so WebViews are taken back when a tab is closed, wiped and handed out
+ * again to the next tab. Idle WebViews are destroyed when the system asks to trim memory.
+ * <p/>
+ * Wiping a WebView loads a blank page and then clears its history, which can only be done once
+ * the blank page has committed: clearing earlier would keep the previous client's page in the
+ * back-forward list, and with it in the next tab's snapshots. WebViews are only handed out once
+ * wiped.
+ * <p/>
+ * All methods must be called on the UI thread, apart from the counters which can be read from
+ * any thread.
+ */
+class WebViewPool implements ComponentCallbacks2 {
+
+    static final int DEFAULT_MAX_SIZE = 2;
+
+    private static final String BLANK_URL = "about:blank";
+
+    private static WebViewPool sInstance;
+
+    private final ArrayList<WebView> mIdleWebViews = new ArrayList<WebView>();
+    // Released WebViews still loading the blank page.
+    private final ArrayList<WebView> mWipingWebViews = new ArrayList<WebView>();
+    private int mMaxSize = DEFAULT_MAX_SIZE;
+    private boolean mRegisteredForTrimMemory;
+    private volatile int mIdleCount;
+    private volatile int mHits;
+    private volatile int mMisses;
+
+    // Set on released WebViews. Also keeps navigations inside the WebView instead of firing
+    // intents.
+    private final WebViewClient mWipeClient = new WebViewClient() {
+        @Override
+        public void onPageFinished(WebView view, String url) {
+            if (!BLANK_URL.equals(url) || !mWipingWebViews.remove(view)) {
+                return;
+            }
+            // Only the blank page is left.
+            view.clearHistory();
+            mIdleWebViews.add(view);
+            mIdleCount = mIdleWebViews.size();
+        }
+    };
+
+    static synchronized WebViewPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new WebViewPool();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a {@link WebView} with the settings used by all custom tabs. The WebView is wrapped
+     * in a {@link MutableContextWrapper} so that it can be created before the hosting activity
+     * exists and outlive it in the pool.
+     */
+    static WebView createWebView(Context context) {
+        WebView webView = new WebView(new MutableContextWrapper(context));
+        webView.getSettings().setJavaScriptEnabled(true);
+        return webView;
+    }
+
+    /**
+     * Returns a pooled WebView attached to the given activity context, or a new WebView if the
+     * pool is empty.
+     */
+    WebView acquire(Context activityContext) {
+        registerForTrimMemory(activityContext);
+        int last = mIdleWebViews.size() - 1;
+        if (last < 0) {
+            mMisses++;
+            return createWebView(activityContext);
+        }
+        mHits++;
+        WebView webView = mIdleWebViews.remove(last);
+        mIdleCount = mIdleWebViews.size();
+        ((MutableContextWrapper) webView.getContext()).setBaseContext(activityContext);
+        webView.onResume();
+        return webView;
+    }
+
+    /**
+     * Takes back a WebView which is no longer used. The WebView is wiped and either kept for the
+     * next {@link #acquire(Context)} or destroyed if the pool is full.
+     */
+    void release(WebView webView) {
+        if (webView.getParent() != null) {
+            ((ViewGroup) webView.getParent()).removeView(webView);
+        }
+        webView.stopLoading();
+        if (mIdleWebViews.size() + mWipingWebViews.size() >= mMaxSize) {
+            webView.destroy();
+            return;
+        }
+        Context appContext = webView.getContext().getApplicationContext();
+        ((MutableContextWrapper) webView.getContext()).setBaseContext(appContext);
+        webView.setWebChromeClient(null);
+        webView.setWebViewClient(mWipeClient);
+        webView.loadUrl(BLANK_URL);
+        webView.onPause();
+        mWipingWebViews.add(webView);
+    }
+
+    /**
+     * Creates an idle WebView ahead of time if none is available.
+     */
+    void prefill(Context context) {
+        registerForTrimMemory(context);
+        if (mIdleWebViews.isEmpty()) {
+            WebView webView = createWebView(context.getApplicationContext());
+            webView.setWebViewClient(new WebViewClient());
+            mIdleWebViews.add(webView);
+            mIdleCount = mIdleWebViews.size();
+        }
+    }
+
+    /**
+     * Sets the maximum number of idle WebViews kept, destroying those above the new maximum.
+     */
+    void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Destroys all idle WebViews.
+     */
+    void trim() {
+        trimToSize(0);
+    }
+
+    int getIdleCount() {
+        return mIdleCount;
+    }
+
+    int getHits() {
+        return mHits;
+    }
+
+    int getMisses() {
+        return mMisses;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        // Hiding the UI alone is no reason to drop the WebViews the next tab needs.
+        if (level >= TRIM_MEMORY_BACKGROUND
+                || (level >= TRIM_MEMORY_RUNNING_LOW && level < TRIM_MEMORY_UI_HIDDEN)) {
+            trim();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        trim();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    private void trimToSize(int size) {
+        while (!mWipingWebViews.isEmpty() && mIdleWebViews.size() + mWipingWebViews.size() > size) {
+            mWipingWebViews.remove(mWipingWebViews.size() - 1).destroy();
+        }
+        while (mIdleWebViews.size() > size) {
+            mIdleWebViews.remove(mIdleWebViews.size() - 1).destroy();
+        }
+        mIdleCount = mIdleWebViews.size();
+    }
+
+    private void registerForTrimMemory(Context context) {
+        if (mRegisteredForTrimMemory) {
+            return;
+        }
+        mRegisteredForTrimMemory = true;
+        context.getApplicationContext().registerComponentCallbacks(this);
+    }
+}
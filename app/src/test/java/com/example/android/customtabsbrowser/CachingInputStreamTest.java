@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class CachingInputStreamTest {
+
+    // Larger than the reader's buffer, so the body is copied in several chunks.
+    private static final int BODY_SIZE = 100 * 1024;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private byte[] mBody;
+    private File mFile;
+    private File mCompletedFile;
+    private String mCompletedHash;
+    private long mCompletedSize;
+    private final CachingInputStream.Listener mListener = new CachingInputStream.Listener() {
+        @Override
+        public void onComplete(File body, String contentHash, long size) {
+            mCompletedFile = body;
+            mCompletedHash = contentHash;
+            mCompletedSize = size;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mBody = new byte[BODY_SIZE];
+        new Random(1).nextBytes(mBody);
+        mFile = new File(mFolder.getRoot(), "body");
+    }
+
+    @Test
+    public void copiesTheBodyReadToTheEnd() throws Exception {
+        InputStream in = open();
+        assertArrayEquals(mBody, readFully(in, BODY_SIZE));
+        in.close();
+        assertEquals(mFile, mCompletedFile);
+        assertEquals(BODY_SIZE, mCompletedSize);
+        assertEquals(ResourceInterceptor.toHex(MessageDigest.getInstance("SHA-1").digest(mBody)),
+                mCompletedHash);
+        assertArrayEquals(mBody, readFully(new FileInputStream(mFile), BODY_SIZE));
+    }
+
+    @Test
+    public void copiesSingleByteReads() throws Exception {
+        InputStream in = open();
+        byte[] read = new byte[BODY_SIZE];
+        for (int i = 0; i < BODY_SIZE; i++) {
+            read[i] = (byte) in.read();
+        }
+        assertEquals(-1, in.read());
+        assertArrayEquals(mBody, read);
+        assertEquals(BODY_SIZE, mCompletedSize);
+    }
+
+    @Test
+    public void closingEarlyDeletesTheCopy() throws Exception {
+        InputStream in = open();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        assertEquals(BUFFER_SIZE, in.read(buffer));
+        in.close();
+        assertNull(mCompletedFile);
+        assertFalse(mFile.exists());
+        // The reader still got the bytes it read.
+        assertArrayEquals(Arrays.copyOf(mBody, BUFFER_SIZE), buffer);
+    }
+
+    @Test
+    public void skippingDeletesTheCopy() throws Exception {
+        InputStream in = open();
+        in.skip(BUFFER_SIZE);
+        readFully(in, BODY_SIZE - BUFFER_SIZE);
+        assertNull(mCompletedFile);
+        assertFalse(mFile.exists());
+    }
+
+    private InputStream open() throws Exception {
+        return new CachingInputStream(new ByteArrayInputStream(mBody), mFile,
+                MessageDigest.getInstance("SHA-1"), mListener);
+    }
+
+    /**
+     * Reads the stream to the end with a small buffer, as the WebView does.
+     */
+    private static byte[] readFully(InputStream in, int size) throws IOException {
+        byte[] result = new byte[size];
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int offset = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            System.arraycopy(buffer, 0, result, offset, read);
+            offset += read;
+        }
+        assertEquals(size, offset);
+        return result;
+    }
+}
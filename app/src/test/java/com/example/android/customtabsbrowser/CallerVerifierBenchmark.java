@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures {@link CallerVerifier} on bursts of service calls, as a client sends when it binds,
+ * creates a session and hints at the URLs it may launch. The package manager answers after
+ * {@link #PACKAGE_MANAGER_CALL_NANOS}, the order of a binder call to the system server. Results
+ * are written by {@link MicroBenchmark}.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class CallerVerifierBenchmark {
+
+    private static final long PACKAGE_MANAGER_CALL_NANOS = 50000;
+    private static final int FIRST_UID = 10000;
+    private static final int CLIENTS = 8;
+    // Service calls per client in a burst.
+    private static final int BURST = 32;
+    private static final int ITERATIONS = 50;
+
+    private static final MicroBenchmark sBenchmark =
+            new MicroBenchmark(CallerVerifierBenchmark.class);
+
+    private Context mContext;
+    private int mPackageManagerCalls;
+
+    @Before
+    public void setUp() {
+        mContext = mock(Context.class);
+        PackageManager packageManager = mock(PackageManager.class);
+        when(mContext.getApplicationContext()).thenReturn(mContext);
+        when(mContext.getPackageManager()).thenReturn(packageManager);
+        when(mContext.registerReceiver(any(BroadcastReceiver.class), any(IntentFilter.class)))
+                .thenReturn(null);
+        when(packageManager.getPackagesForUid(anyInt())).thenAnswer(new Answer<String[]>() {
+            @Override
+            public String[] answer(InvocationOnMock invocation) {
+                int uid = (Integer) invocation.getArguments()[0];
+                return new String[] {packageManagerCall("com.example.client" + uid)};
+            }
+        });
+        when(packageManager.checkSignatures(anyInt(), anyInt())).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                return packageManagerCall(PackageManager.SIGNATURE_NO_MATCH);
+            }
+        });
+    }
+
+    @AfterClass
+    public static void writeResults() throws Exception {
+        sBenchmark.writeResults();
+    }
+
+    @Test
+    public void uncachedBurst() throws Exception {
+        sBenchmark.measure("uncachedBurst", ITERATIONS, new MicroBenchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                for (int i = 0; i < BURST; i++) {
+                    // A new verifier per call, as each call was verified before the cache.
+                    assertTrue(new CallerVerifier().verify(mContext, uid(iteration)).isVerified());
+                }
+            }
+        });
+        assertEquals(2 * ITERATIONS * BURST * 2, mPackageManagerCalls);
+    }
+
+    @Test
+    public void coldBurst() throws Exception {
+        sBenchmark.measure("coldBurst", ITERATIONS, new MicroBenchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                verifyBurst(new CallerVerifier(), uid(iteration));
+            }
+        });
+        assertEquals(2 * ITERATIONS * 2, mPackageManagerCalls);
+    }
+
+    @Test
+    public void cachedBurst() throws Exception {
+        final CallerVerifier verifier = new CallerVerifier();
+        for (int i = 0; i < CLIENTS; i++) {
+            verifier.verify(mContext, uid(i));
+        }
+        mPackageManagerCalls = 0;
+        sBenchmark.measure("cachedBurst", ITERATIONS, new MicroBenchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                verifyBurst(verifier, uid(iteration));
+            }
+        });
+        assertEquals(0, mPackageManagerCalls);
+    }
+
+    private void verifyBurst(CallerVerifier verifier, int uid) {
+        for (int i = 0; i < BURST; i++) {
+            assertTrue(verifier.verify(mContext, uid).isVerified());
+        }
+    }
+
+    private static int uid(int iteration) {
+        return FIRST_UID + iteration % CLIENTS;
+    }
+
+    private <T> T packageManagerCall(T result) {
+        mPackageManagerCalls++;
+        long end = System.nanoTime() + PACKAGE_MANAGER_CALL_NANOS;
+        while (System.nanoTime() < end) {
+            // Spins, sleeping is too coarse for a call this short.
+        }
+        return result;
+    }
+}
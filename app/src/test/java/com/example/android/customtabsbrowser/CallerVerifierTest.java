@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class CallerVerifierTest {
+
+    private static final int UID = 10123;
+    private static final String PACKAGE = "com.example.client";
+
+    private Context mContext;
+    private PackageManager mPackageManager;
+    private CallerVerifier mVerifier;
+    private BroadcastReceiver mPackageChangeReceiver;
+
+    @Before
+    public void setUp() {
+        mContext = mock(Context.class);
+        mPackageManager = mock(PackageManager.class);
+        when(mContext.getApplicationContext()).thenReturn(mContext);
+        when(mContext.getPackageManager()).thenReturn(mPackageManager);
+        when(mContext.registerReceiver(any(BroadcastReceiver.class), any(IntentFilter.class)))
+                .thenAnswer(new Answer<Intent>() {
+                    @Override
+                    public Intent answer(InvocationOnMock invocation) {
+                        mPackageChangeReceiver = (BroadcastReceiver) invocation.getArguments()[0];
+                        return null;
+                    }
+                });
+        when(mPackageManager.getPackagesForUid(UID)).thenReturn(new String[] {PACKAGE});
+        when(mPackageManager.checkSignatures(anyInt(), anyInt()))
+                .thenReturn(PackageManager.SIGNATURE_NO_MATCH);
+        mVerifier = new CallerVerifier();
+    }
+
+    @Test
+    public void verifiesInstalledPackages() {
+        CallerVerifier.Caller caller = mVerifier.verify(mContext, UID);
+        assertTrue(caller.isVerified());
+        assertEquals(PACKAGE, caller.mPackageName);
+        assertFalse(caller.mTrusted);
+    }
+
+    @Test
+    public void trustsPackagesWithTheSameSignature() {
+        when(mPackageManager.checkSignatures(anyInt(), anyInt()))
+                .thenReturn(PackageManager.SIGNATURE_MATCH);
+        assertTrue(mVerifier.verify(mContext, UID).mTrusted);
+    }
+
+    @Test
+    public void rejectsUnknownUids() {
+        assertFalse(mVerifier.verify(mContext, UID + 1).isVerified());
+    }
+
+    @Test
+    public void cachesResults() {
+        mVerifier.verify(mContext, UID);
+        mVerifier.verify(mContext, UID);
+        verify(mPackageManager, times(1)).getPackagesForUid(UID);
+    }
+
+    @Test
+    public void packageChangesInvalidateTheirUid() {
+        mVerifier.verify(mContext, UID);
+        mVerifier.verify(mContext, UID + 1);
+        sendPackageChange(UID);
+        mVerifier.verify(mContext, UID);
+        mVerifier.verify(mContext, UID + 1);
+        verify(mPackageManager, times(2)).getPackagesForUid(UID);
+        verify(mPackageManager, times(1)).getPackagesForUid(UID + 1);
+    }
+
+    @Test
+    public void lookUpsRacingWithAChangeAreNotCached() {
+        when(mPackageManager.getPackagesForUid(UID)).thenAnswer(new Answer<String[]>() {
+            private int mCalls;
+
+            @Override
+            public String[] answer(InvocationOnMock invocation) {
+                if (mCalls++ > 0) {
+                    return new String[] {PACKAGE};
+                }
+                // The package is updated while the first lookup is in flight.
+                sendPackageChange(UID);
+                return new String[] {"com.example.stale"};
+            }
+        });
+        assertEquals("com.example.stale", mVerifier.verify(mContext, UID).mPackageName);
+        assertEquals(PACKAGE, mVerifier.verify(mContext, UID).mPackageName);
+        assertEquals(PACKAGE, mVerifier.verify(mContext, UID).mPackageName);
+        verify(mPackageManager, times(2)).getPackagesForUid(UID);
+    }
+
+    private void sendPackageChange(int uid) {
+        Intent intent = new Intent(Intent.ACTION_PACKAGE_CHANGED);
+        intent.putExtra(Intent.EXTRA_UID, uid);
+        mPackageChangeReceiver.onReceive(mContext, intent);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static android.support.customtabs.CustomTabsIntent.EXTRA_ACTION_BUTTON_BUNDLE;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_CLOSE_BUTTON_ICON;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_EXIT_ANIMATION_BUNDLE;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_MENU_ITEMS;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_TITLE_VISIBILITY_STATE;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_TOOLBAR_COLOR;
+import static android.support.customtabs.CustomTabsIntent.KEY_DESCRIPTION;
+import static android.support.customtabs.CustomTabsIntent.KEY_ICON;
+import static android.support.customtabs.CustomTabsIntent.KEY_MENU_ITEM_TITLE;
+import static android.support.customtabs.CustomTabsIntent.KEY_PENDING_INTENT;
+import static android.support.customtabs.CustomTabsIntent.SHOW_PAGE_TITLE;
+import static com.example.android.customtabsbrowser.CustomTabFixtures.URL;
+import static com.example.android.customtabsbrowser.CustomTabFixtures.newCustomTabIntent;
+import static com.example.android.customtabsbrowser.CustomTabFixtures.newIcon;
+import static com.example.android.customtabsbrowser.CustomTabFixtures.newPendingIntent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class CustomTabConfigTest {
+
+    @Test
+    public void intentsWithoutASessionAreNotCustomTabs() {
+        Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(URL));
+        intent.putExtra(EXTRA_TOOLBAR_COLOR, Color.RED);
+        CustomTabConfig config = CustomTabConfig.fromIntent(intent);
+        assertFalse(config.isCustomTab());
+        assertEquals(CustomTabConfig.NO_COLOR, config.getToolbarColor());
+        assertFalse(config.isTitleVisible());
+        assertFalse(config.hasActionButton());
+        assertFalse(config.hasExitAnimation());
+        assertEquals(0, config.getMenuItemCount());
+    }
+
+    @Test
+    public void intentsWithoutAUrlAreNotCustomTabs() {
+        Intent intent = newCustomTabIntent();
+        intent.setData(null);
+        assertFalse(CustomTabConfig.fromIntent(intent).isCustomTab());
+    }
+
+    @Test
+    public void defaults() {
+        CustomTabConfig config = CustomTabConfig.fromIntent(newCustomTabIntent());
+        assertTrue(config.isCustomTab());
+        assertEquals(URL, config.getUrl());
+        assertEquals(CustomTabConfig.NO_COLOR, config.getToolbarColor());
+        assertFalse(config.isTitleVisible());
+        assertNull(config.getCloseButtonIcon());
+        assertFalse(config.hasActionButton());
+        assertFalse(config.hasExitAnimation());
+        assertEquals(0, config.getMenuItemCount());
+    }
+
+    @Test
+    public void parsesTheToolbar() {
+        Intent intent = newCustomTabIntent();
+        Bitmap closeButtonIcon = newIcon();
+        intent.putExtra(EXTRA_TOOLBAR_COLOR, Color.RED);
+        intent.putExtra(EXTRA_TITLE_VISIBILITY_STATE, SHOW_PAGE_TITLE);
+        intent.putExtra(EXTRA_CLOSE_BUTTON_ICON, closeButtonIcon);
+        CustomTabConfig config = CustomTabConfig.fromIntent(intent);
+        assertEquals(Color.RED, config.getToolbarColor());
+        assertTrue(config.isTitleVisible());
+        assertSame(closeButtonIcon, config.getCloseButtonIcon());
+    }
+
+    @Test
+    public void parsesTheActionButton() {
+        Intent intent = newCustomTabIntent();
+        Bitmap icon = newIcon();
+        PendingIntent pendingIntent = newPendingIntent("action");
+        Bundle actionButton = new Bundle();
+        actionButton.putParcelable(KEY_ICON, icon);
+        actionButton.putString(KEY_DESCRIPTION, "Share");
+        actionButton.putParcelable(KEY_PENDING_INTENT, pendingIntent);
+        intent.putExtra(EXTRA_ACTION_BUTTON_BUNDLE, actionButton);
+        CustomTabConfig config = CustomTabConfig.fromIntent(intent);
+        assertTrue(config.hasActionButton());
+        assertSame(icon, config.getActionButtonIcon());
+        assertEquals("Share", config.getActionButtonDescription());
+        assertSame(pendingIntent, config.getActionButtonPendingIntent());
+    }
+
+    @Test
+    public void actionButtonDescriptionDefaultsToEmpty() {
+        Intent intent = newCustomTabIntent();
+        intent.putExtra(EXTRA_ACTION_BUTTON_BUNDLE, new Bundle());
+        assertEquals("", CustomTabConfig.fromIntent(intent).getActionButtonDescription());
+    }
+
+    @Test
+    public void parsesTheExitAnimation() {
+        Intent intent = newCustomTabIntent();
+        Bundle exitAnimation = new Bundle();
+        exitAnimation.putInt("android:activity.animEnterRes", android.R.anim.fade_in);
+        exitAnimation.putInt("android:activity.animExitRes", android.R.anim.fade_out);
+        intent.putExtra(EXTRA_EXIT_ANIMATION_BUNDLE, exitAnimation);
+        CustomTabConfig config = CustomTabConfig.fromIntent(intent);
+        assertTrue(config.hasExitAnimation());
+        assertEquals(android.R.anim.fade_in, config.getExitAnimationEnterResId());
+        assertEquals(android.R.anim.fade_out, config.getExitAnimationExitResId());
+    }
+
+    @Test
+    public void parsesEveryCustomization() {
+        CustomTabConfig config = CustomTabConfig.fromIntent(
+                CustomTabFixtures.newFullCustomTabIntent(CustomTabFixtures.TOOLBAR_COLOR));
+        assertTrue(config.isCustomTab());
+        assertEquals(CustomTabFixtures.TOOLBAR_COLOR, config.getToolbarColor());
+        assertTrue(config.isTitleVisible());
+        assertNotNull(config.getCloseButtonIcon());
+        assertTrue(config.hasActionButton());
+        assertTrue(config.hasExitAnimation());
+        assertEquals(CustomTabFixtures.MENU_ITEM_COUNT, config.getMenuItemCount());
+    }
+
+    @Test
+    public void isASnapshotOfTheIntent() {
+        Intent intent = newCustomTabIntent();
+        intent.putExtra(EXTRA_TOOLBAR_COLOR, Color.RED);
+        CustomTabConfig config = CustomTabConfig.fromIntent(intent);
+        intent.putExtra(EXTRA_TOOLBAR_COLOR, Color.BLUE);
+        intent.setData(Uri.parse("https://example.org/"));
+        assertEquals(Color.RED, config.getToolbarColor());
+        assertEquals(URL, config.getUrl());
+    }
+
+    @Test
+    public void keepsAtMostTheMaximumNumberOfMenuItems() {
+        Intent intent = newCustomTabIntent();
+        ArrayList<Bundle> items = new ArrayList<Bundle>();
+        for (int i = 0; i < CustomTabConfig.MAX_MENU_ITEMS + 3; i++) {
+            Bundle item = new Bundle();
+            item.putString(KEY_MENU_ITEM_TITLE, "Item " + i);
+            if (i % 2 == 0) {
+                item.putParcelable(KEY_PENDING_INTENT, newPendingIntent("menu" + i));
+            }
+            items.add(item);
+        }
+        intent.putParcelableArrayListExtra(EXTRA_MENU_ITEMS, items);
+        CustomTabConfig config = CustomTabConfig.fromIntent(intent);
+        assertEquals(CustomTabConfig.MAX_MENU_ITEMS, config.getMenuItemCount());
+        assertEquals("Item 0", config.getMenuItemTitle(0));
+        assertNotNull(config.getMenuItemPendingIntent(0));
+        assertNull(config.getMenuItemPendingIntent(1));
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.graphics.Color;
+import android.graphics.drawable.Drawable;
+import android.view.View;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.fakes.RoboMenu;
+import org.robolectric.shadows.ShadowLooper;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the launch path of {@link CustomTabController} with intents using every
+ * customization. Results are written by {@link MicroBenchmark}.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class CustomTabControllerBenchmark {
+
+    private static final int ITERATIONS = 2000;
+    // Title changes per frame, as seen while a page and its redirects load.
+    private static final int TITLES_PER_FRAME = 4;
+    private static final String[] TITLES = {
+            "example.com",
+            "Example Domain",
+            "Example Domain - Loading",
+            "Example Domain - An article with a rather long title that gets truncated",
+    };
+
+    private static final MicroBenchmark sBenchmark =
+            new MicroBenchmark(CustomTabControllerBenchmark.class);
+
+    private final RecordingCallback mCallback = new RecordingCallback();
+    private Intent[] mIntents;
+    private Activity mActivity;
+
+    @Before
+    public void setUp() {
+        // Two colors, so that relaunches animate the toolbar.
+        mIntents = new Intent[] {
+                CustomTabFixtures.newFullCustomTabIntent(CustomTabFixtures.TOOLBAR_COLOR),
+                CustomTabFixtures.newFullCustomTabIntent(Color.rgb(0xe9, 0x1e, 0x63)),
+        };
+        mActivity = Robolectric.buildActivity(Activity.class).withIntent(mIntents[0]).create()
+                .get();
+    }
+
+    @AfterClass
+    public static void writeResults() throws Exception {
+        sBenchmark.writeResults();
+    }
+
+    @Test
+    public void parseIntent() throws Exception {
+        sBenchmark.measure("parseIntent", ITERATIONS, new MicroBenchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                CustomTabConfig.fromIntent(mIntents[iteration & 1]);
+            }
+        });
+    }
+
+    @Test
+    public void launch() throws Exception {
+        sBenchmark.measure("launch", ITERATIONS, new MicroBenchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                new CustomTabController(mActivity, mCallback).launch();
+            }
+        });
+        assertEquals(CustomTabFixtures.URL, mCallback.mUrl);
+    }
+
+    @Test
+    public void relaunch() throws Exception {
+        final CustomTabController controller = new CustomTabController(mActivity, mCallback);
+        controller.launch();
+        sBenchmark.measure("relaunch", ITERATIONS, new MicroBenchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                controller.onNewIntent(mIntents[iteration & 1]);
+                controller.launch();
+            }
+        });
+    }
+
+    @Test
+    public void onTitleChange() throws Exception {
+        final CustomTabController controller = new CustomTabController(mActivity, mCallback);
+        controller.launch();
+        sBenchmark.measure("onTitleChange", ITERATIONS, new MicroBenchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                controller.onTitleChange(TITLES[iteration % TITLES.length]);
+                if (iteration % TITLES_PER_FRAME == TITLES_PER_FRAME - 1) {
+                    ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+                }
+            }
+        });
+        assertEquals(TITLES[TITLES.length - 1], mCallback.mTitle);
+    }
+
+    @Test
+    public void updateMenu() throws Exception {
+        final CustomTabController controller = new CustomTabController(mActivity, mCallback);
+        controller.launch();
+        final RoboMenu menu = new RoboMenu(RuntimeEnvironment.application);
+        sBenchmark.measure("updateMenu", ITERATIONS, new MicroBenchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                menu.clear();
+                controller.updateMenu(menu);
+            }
+        });
+        assertEquals(CustomTabFixtures.MENU_ITEM_COUNT, menu.size());
+    }
+
+    /**
+     * Keeps the latest values only, so that the callback does not grow with the iterations.
+     */
+    private static class RecordingCallback implements CustomTabController.Callback {
+        String mTitle;
+        String mUrl;
+
+        @Override
+        public void setTitle(String title) {
+            mTitle = title;
+        }
+
+        @Override
+        public void setUrl(String url) {
+            mUrl = url;
+        }
+
+        @Override
+        public void setActionButtonVisibility(int visible) {
+        }
+
+        @Override
+        public void setActionButtonOnClickListener(View.OnClickListener listener) {
+        }
+
+        @Override
+        public void setActionButtonImageDrawable(Drawable drawable) {
+        }
+
+        @Override
+        public void setActionButtonContentDescription(CharSequence description) {
+        }
+
+        @Override
+        public void setActionBarCloseDrawable(Drawable drawable) {
+        }
+
+        @Override
+        public void setActionBarBackgroundDrawable(Drawable drawable) {
+        }
+
+        @Override
+        public void setToolbarTextColor(int color) {
+        }
+
+        @Override
+        public void onError(String description, Exception e) {
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+
+import static android.support.customtabs.CustomTabsIntent.EXTRA_ACTION_BUTTON_BUNDLE;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_MENU_ITEMS;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_TITLE_VISIBILITY_STATE;
+import static android.support.customtabs.CustomTabsIntent.KEY_DESCRIPTION;
+import static android.support.customtabs.CustomTabsIntent.KEY_MENU_ITEM_TITLE;
+import static android.support.customtabs.CustomTabsIntent.KEY_PENDING_INTENT;
+import static android.support.customtabs.CustomTabsIntent.SHOW_PAGE_TITLE;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class CustomTabControllerTest {
+
+    private Activity mActivity;
+    private CustomTabController.Callback mCallback;
+    private Menu mMenu;
+
+    @Before
+    public void setUp() {
+        mActivity = mock(Activity.class);
+        mCallback = mock(CustomTabController.Callback.class);
+        mMenu = mock(Menu.class);
+        MenuItem item = mock(MenuItem.class);
+        when(mMenu.add(anyInt(), anyInt(), anyInt(), anyString())).thenReturn(item);
+        when(item.setOnMenuItemClickListener(any(MenuItem.OnMenuItemClickListener.class)))
+                .thenReturn(item);
+    }
+
+    @Test
+    public void showsItemsWithATitleAndAnIntent() {
+        ArrayList<Bundle> items = new ArrayList<Bundle>();
+        items.add(newMenuItem("One", true));
+        items.add(newMenuItem(null, true));
+        items.add(newMenuItem("", true));
+        items.add(newMenuItem("Dead", false));
+        items.add(newMenuItem("Two", true));
+        newController(items).updateMenu(mMenu);
+        verify(mMenu).add(Menu.NONE, 0, Menu.NONE, "One");
+        verify(mMenu).add(Menu.NONE, 4, Menu.NONE, "Two");
+        verify(mMenu, times(2)).add(anyInt(), anyInt(), anyInt(), anyString());
+    }
+
+    @Test
+    public void showsAtMostTheMaximumNumberOfItems() {
+        ArrayList<Bundle> items = new ArrayList<Bundle>();
+        for (int i = 0; i < CustomTabConfig.MAX_MENU_ITEMS + 3; i++) {
+            items.add(newMenuItem("Item " + i, true));
+        }
+        newController(items).updateMenu(mMenu);
+        verify(mMenu, times(CustomTabConfig.MAX_MENU_ITEMS))
+                .add(anyInt(), anyInt(), anyInt(), anyString());
+        verify(mMenu, never()).add(Menu.NONE, CustomTabConfig.MAX_MENU_ITEMS, Menu.NONE,
+                "Item " + CustomTabConfig.MAX_MENU_ITEMS);
+    }
+
+    @Test
+    public void showsNoItemsForOtherIntents() {
+        when(mActivity.getIntent()).thenReturn(new Intent(Intent.ACTION_MAIN));
+        new CustomTabController(mActivity, mCallback).updateMenu(mMenu);
+        verify(mMenu, never()).add(anyInt(), anyInt(), anyInt(), anyString());
+    }
+
+    @Test
+    public void titleChangesAreCoalescedPerFrame() {
+        Intent intent = CustomTabFixtures.newCustomTabIntent();
+        intent.putExtra(EXTRA_TITLE_VISIBILITY_STATE, SHOW_PAGE_TITLE);
+        when(mActivity.getIntent()).thenReturn(intent);
+        CustomTabController controller = new CustomTabController(mActivity, mCallback);
+        controller.onTitleChange("Loading");
+        controller.onTitleChange("Loading.");
+        controller.onTitleChange("Example");
+        verify(mCallback, never()).setTitle(anyString());
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        verify(mCallback).setTitle("Example");
+        verify(mCallback, times(1)).setTitle(anyString());
+
+        controller.onTitleChange("Example, page 2");
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        verify(mCallback).setTitle("Example, page 2");
+    }
+
+    @Test
+    public void hiddenTitlesAreCleared() {
+        when(mActivity.getIntent()).thenReturn(CustomTabFixtures.newCustomTabIntent());
+        CustomTabController controller = new CustomTabController(mActivity, mCallback);
+        controller.onTitleChange("Example");
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        verify(mCallback).setTitle("");
+    }
+
+    @Test
+    public void visualsAreAppliedOnTheNextFrame() {
+        when(mActivity.getIntent()).thenReturn(CustomTabFixtures.newFullCustomTabIntent(
+                CustomTabFixtures.TOOLBAR_COLOR));
+        CustomTabController controller = new CustomTabController(mActivity, mCallback);
+        assertTrue(controller.updateVisuals(newVisuals("Share")));
+        verify(mCallback, never()).setActionButtonContentDescription("Share");
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        verify(mCallback).setActionButtonContentDescription("Share");
+    }
+
+    @Test
+    public void visualsAreDroppedForANewIntentWithoutActionButton() {
+        when(mActivity.getIntent()).thenReturn(CustomTabFixtures.newFullCustomTabIntent(
+                CustomTabFixtures.TOOLBAR_COLOR));
+        CustomTabController controller = new CustomTabController(mActivity, mCallback);
+        assertTrue(controller.updateVisuals(newVisuals("Share")));
+        controller.onNewIntent(CustomTabFixtures.newCustomTabIntent());
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        verify(mCallback, never()).setActionButtonContentDescription("Share");
+        assertFalse(controller.updateVisuals(newVisuals("Share")));
+    }
+
+    private CustomTabController newController(ArrayList<Bundle> menuItems) {
+        Intent intent = CustomTabFixtures.newCustomTabIntent();
+        intent.putParcelableArrayListExtra(EXTRA_MENU_ITEMS, menuItems);
+        when(mActivity.getIntent()).thenReturn(intent);
+        return new CustomTabController(mActivity, mCallback);
+    }
+
+    private static Bundle newVisuals(String description) {
+        Bundle actionButton = new Bundle();
+        actionButton.putString(KEY_DESCRIPTION, description);
+        Bundle visuals = new Bundle();
+        visuals.putBundle(EXTRA_ACTION_BUTTON_BUNDLE, actionButton);
+        return visuals;
+    }
+
+    private static Bundle newMenuItem(String title, boolean withIntent) {
+        Bundle item = new Bundle();
+        item.putString(KEY_MENU_ITEM_TITLE, title);
+        if (withIntent) {
+            item.putParcelable(KEY_PENDING_INTENT, CustomTabFixtures.newPendingIntent("menu"));
+        }
+        return item;
+    }
+}
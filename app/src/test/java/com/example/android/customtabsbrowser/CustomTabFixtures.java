@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
+import android.support.v4.app.BundleCompat;
+
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+
+import static android.support.customtabs.CustomTabsIntent.EXTRA_ACTION_BUTTON_BUNDLE;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_CLOSE_BUTTON_ICON;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_EXIT_ANIMATION_BUNDLE;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_MENU_ITEMS;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_SESSION;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_TITLE_VISIBILITY_STATE;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_TOOLBAR_COLOR;
+import static android.support.customtabs.CustomTabsIntent.KEY_DESCRIPTION;
+import static android.support.customtabs.CustomTabsIntent.KEY_ICON;
+import static android.support.customtabs.CustomTabsIntent.KEY_MENU_ITEM_TITLE;
+import static android.support.customtabs.CustomTabsIntent.KEY_PENDING_INTENT;
+import static android.support.customtabs.CustomTabsIntent.SHOW_PAGE_TITLE;
+
+/**
+ * Builds custom tab intents the way client apps do, for the tests and benchmarks.
+ */
+final class CustomTabFixtures {
+
+    static final String URL = "https://example.com/";
+    static final int TOOLBAR_COLOR = Color.rgb(0x3f, 0x51, 0xb5);
+    static final int MENU_ITEM_COUNT = 5;
+    // 24dp icons at xxhdpi, as sent by the support library samples.
+    static final int ICON_SIZE_PX = 72;
+
+    private CustomTabFixtures() {
+    }
+
+    /**
+     * Returns a custom tab intent with a session and a URL and nothing else.
+     */
+    static Intent newCustomTabIntent() {
+        Bundle extras = new Bundle();
+        BundleCompat.putBinder(extras, EXTRA_SESSION, new Binder());
+        Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(URL));
+        intent.putExtras(extras);
+        return intent;
+    }
+
+    /**
+     * Returns a custom tab intent using every customization: toolbar color, title, close button
+     * icon, action button, menu items and exit animation.
+     */
+    static Intent newFullCustomTabIntent(int toolbarColor) {
+        Intent intent = newCustomTabIntent();
+        intent.putExtra(EXTRA_TOOLBAR_COLOR, toolbarColor);
+        intent.putExtra(EXTRA_TITLE_VISIBILITY_STATE, SHOW_PAGE_TITLE);
+        intent.putExtra(EXTRA_CLOSE_BUTTON_ICON, newIcon());
+        intent.putExtra(EXTRA_ACTION_BUTTON_BUNDLE, newActionButton("Share"));
+        ArrayList<Bundle> menuItems = new ArrayList<Bundle>();
+        for (int i = 0; i < MENU_ITEM_COUNT; i++) {
+            Bundle item = new Bundle();
+            item.putString(KEY_MENU_ITEM_TITLE, "Menu item " + i);
+            item.putParcelable(KEY_PENDING_INTENT, newPendingIntent("menu" + i));
+            menuItems.add(item);
+        }
+        intent.putParcelableArrayListExtra(EXTRA_MENU_ITEMS, menuItems);
+        Bundle exitAnimation = new Bundle();
+        exitAnimation.putInt("android:activity.animEnterRes", android.R.anim.fade_in);
+        exitAnimation.putInt("android:activity.animExitRes", android.R.anim.fade_out);
+        intent.putExtra(EXTRA_EXIT_ANIMATION_BUNDLE, exitAnimation);
+        return intent;
+    }
+
+    /**
+     * Returns an action button bundle, as sent at launch or with updateVisuals().
+     */
+    static Bundle newActionButton(String description) {
+        Bundle actionButton = new Bundle();
+        actionButton.putParcelable(KEY_ICON, newIcon());
+        actionButton.putString(KEY_DESCRIPTION, description);
+        actionButton.putParcelable(KEY_PENDING_INTENT, newPendingIntent("action"));
+        return actionButton;
+    }
+
+    static PendingIntent newPendingIntent(String action) {
+        return PendingIntent.getBroadcast(RuntimeEnvironment.application, 0, new Intent(action), 0);
+    }
+
+    static Bitmap newIcon() {
+        return Bitmap.createBitmap(ICON_SIZE_PX, ICON_SIZE_PX, Bitmap.Config.ARGB_8888);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The trace is process wide, so each test only looks at the events it recorded last.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class LaunchTraceTest {
+
+    @Test
+    public void recordsSpansInOrder() {
+        LaunchTrace.begin(LaunchTrace.LOAD_URL);
+        LaunchTrace.mark(LaunchTrace.PAGE_STARTED);
+        LaunchTrace.end(LaunchTrace.LOAD_URL);
+        Bundle trace = LaunchTrace.toBundle();
+        String[] names = trace.getStringArray("names");
+        long[] timesNanos = trace.getLongArray("timesNanos");
+        int count = names.length;
+        assertEquals(Arrays.asList("loadUrl:begin", "onPageStarted:event", "loadUrl:end"),
+                Arrays.asList(names).subList(count - 3, count));
+        assertTrue(timesNanos[count - 3] <= timesNanos[count - 2]);
+        assertTrue(timesNanos[count - 2] <= timesNanos[count - 1]);
+    }
+
+    @Test
+    public void keepsOnlyTheLatestEvents() {
+        for (int i = 0; i < LaunchTrace.EVENT_CAPACITY; i++) {
+            LaunchTrace.mark(LaunchTrace.PAGE_STARTED);
+        }
+        LaunchTrace.mark(LaunchTrace.FIRST_TITLE);
+        String[] names = LaunchTrace.toBundle().getStringArray("names");
+        assertEquals(LaunchTrace.EVENT_CAPACITY, names.length);
+        assertEquals("onPageStarted:event", names[0]);
+        assertEquals("firstTitle:event", names[names.length - 1]);
+    }
+
+    @Test
+    public void recordsLaunches() {
+        int launches = LaunchTrace.getLaunchCount();
+        LaunchTrace.beginLaunch();
+        LaunchTrace.endLaunch();
+        assertEquals(launches + 1, LaunchTrace.getLaunchCount());
+        String[] names = LaunchTrace.toBundle().getStringArray("names");
+        assertEquals("onCreate:begin", names[names.length - 2]);
+        assertEquals("firstPaint:event", names[names.length - 1]);
+        assertTrue(LaunchTrace.getLaunchLatencyPercentileMs(50)
+                <= LaunchTrace.getLaunchLatencyPercentileMs(95));
+    }
+
+    @Test
+    public void dumpEndsWithTheLatencySummary() {
+        StringWriter dump = new StringWriter();
+        LaunchTrace.dump(new PrintWriter(dump));
+        String[] lines = dump.toString().split("\n");
+        assertEquals("Launch trace:", lines[0]);
+        String summary = "  launches=" + LaunchTrace.getLaunchCount();
+        assertTrue(lines[lines.length - 1].startsWith(summary));
+    }
+}
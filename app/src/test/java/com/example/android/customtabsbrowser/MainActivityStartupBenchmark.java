@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.content.Intent;
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ActivityController;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the start of {@link MainActivity} for a custom tab intent, from onCreate to resumed,
+ * with the page load started at the beginning of onCreate and, as before, from the launch in
+ * onStart. Besides the whole start, the time from onCreate to the page load is recorded from the
+ * {@link LaunchTrace}. Results are written by {@link MicroBenchmark}.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class MainActivityStartupBenchmark {
+
+    private static final int ITERATIONS = 200;
+    private static final String ON_CREATE = "onCreate:begin";
+    private static final String LOAD_URL = "loadUrl:begin";
+    private static final String CONTENT_VIEW = "setContentView:begin";
+
+    private static final MicroBenchmark sBenchmark =
+            new MicroBenchmark(MainActivityStartupBenchmark.class);
+
+    @After
+    public void tearDown() {
+        MainActivity.sLoadUrlEarly = true;
+    }
+
+    @AfterClass
+    public static void writeResults() throws Exception {
+        sBenchmark.writeResults();
+    }
+
+    @Test
+    public void earlyLoadUrl() throws Exception {
+        measureStartup("earlyLoadUrl", true);
+    }
+
+    @Test
+    public void loadUrlOnLaunch() throws Exception {
+        MainActivity.sLoadUrlEarly = false;
+        measureStartup("loadUrlOnLaunch", false);
+    }
+
+    private void measureStartup(String name, final boolean loadsBeforeContentView)
+            throws Exception {
+        final Intent intent =
+                CustomTabFixtures.newFullCustomTabIntent(CustomTabFixtures.TOOLBAR_COLOR);
+        final long[] loadUrlDelaysNanos = new long[ITERATIONS];
+        sBenchmark.measure(name, ITERATIONS, new MicroBenchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                ActivityController<MainActivity> activity = Robolectric
+                        .buildActivity(MainActivity.class).withIntent(intent)
+                        .create().start().resume();
+                long delayNanos = getLoadUrlDelayNanos(loadsBeforeContentView);
+                if (iteration >= ITERATIONS) {
+                    loadUrlDelaysNanos[iteration - ITERATIONS] = delayNanos;
+                }
+                activity.pause().stop().destroy();
+            }
+        });
+        sBenchmark.record(name + "TimeToLoadUrl", loadUrlDelaysNanos);
+    }
+
+    /**
+     * Returns the time from the beginning of the latest onCreate to the page load it started, and
+     * checks whether the load came before the layout was inflated.
+     */
+    private static long getLoadUrlDelayNanos(boolean loadsBeforeContentView) {
+        Bundle trace = LaunchTrace.toBundle();
+        String[] names = trace.getStringArray("names");
+        long[] timesNanos = trace.getLongArray("timesNanos");
+        int loadUrl = -1;
+        int contentView = -1;
+        for (int i = names.length - 1; i >= 0; i--) {
+            if (LOAD_URL.equals(names[i])) {
+                loadUrl = i;
+            } else if (CONTENT_VIEW.equals(names[i])) {
+                contentView = i;
+            } else if (ON_CREATE.equals(names[i])) {
+                assertTrue("No page load after onCreate", loadUrl > i);
+                assertEquals(loadsBeforeContentView, loadUrl < contentView);
+                return timesNanos[loadUrl] - timesNanos[i];
+            }
+        }
+        throw new AssertionError("No onCreate in the launch trace");
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A small benchmark harness for the JVM tests. Runs an operation after a warm-up, on one thread or
+ * on several threads at once, and measures its throughput, its latency percentiles and the bytes
+ * it allocates.
+ * <p/>
+ * The results of a test class are written to {@code build/benchmarks/<test class>.txt} in the
+ * module directory, one line per benchmark, so that they can be compared across builds. Numbers
+ * taken under Robolectric include the cost of its shadows and are only meaningful relative to
+ * each other.
+ */
+final class MicroBenchmark {
+
+    /**
+     * The operation to measure.
+     */
+    interface Operation {
+        void run(int iteration) throws Exception;
+    }
+
+    /**
+     * The operation to measure from several threads at once.
+     */
+    interface ConcurrentOperation {
+        void run(int thread, int iteration) throws Exception;
+    }
+
+    /**
+     * The measurements of one benchmark.
+     */
+    static final class Result {
+        final String mName;
+        final long mOperations;
+        final double mOpsPerSecond;
+        // -1 if the JVM cannot count allocations.
+        final long mBytesPerOp;
+        final long mP50Nanos;
+        final long mP99Nanos;
+
+        Result(String name, long operations, double opsPerSecond, long bytesPerOp,
+               long p50Nanos, long p99Nanos) {
+            mName = name;
+            mOperations = operations;
+            mOpsPerSecond = opsPerSecond;
+            mBytesPerOp = bytesPerOp;
+            mP50Nanos = p50Nanos;
+            mP99Nanos = p99Nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s ops=%d opsPerSec=%.0f bytesPerOp=%d"
+                    + " p50Us=%.1f p99Us=%.1f", mName, mOperations, mOpsPerSecond, mBytesPerOp,
+                    mP50Nanos / 1000.0, mP99Nanos / 1000.0);
+        }
+    }
+
+    private static final File RESULTS_DIR = new File("build/benchmarks");
+
+    private final Class<?> mTest;
+    private final List<Result> mResults = new ArrayList<Result>();
+
+    MicroBenchmark(Class<?> test) {
+        mTest = test;
+    }
+
+    /**
+     * Runs the operation the given number of times to warm up, then measures as many runs. The
+     * iteration passed to the operation keeps counting through the measured runs.
+     */
+    Result measure(String name, int iterations, Operation operation) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            operation.run(i);
+        }
+        long[] latenciesNanos = new long[iterations];
+        long startBytes = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            long operationStart = System.nanoTime();
+            operation.run(iterations + i);
+            latenciesNanos[i] = System.nanoTime() - operationStart;
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        long endBytes = getAllocatedBytes();
+        long bytesPerOp = startBytes < 0 ? -1 : (endBytes - startBytes) / iterations;
+        return addResult(name, latenciesNanos, elapsedNanos, bytesPerOp);
+    }
+
+    /**
+     * Runs the operation the given number of times on each of the given number of threads, all
+     * started at once, to warm up, then measures as many runs. Throughput counts the runs of all
+     * threads; latencies and allocations are those of single runs.
+     */
+    Result measureConcurrently(String name, int threads, int iterationsPerThread,
+                               ConcurrentOperation operation) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            runConcurrently(executor, threads, iterationsPerThread, 0, operation, null);
+            long[][] latenciesNanos = new long[threads][iterationsPerThread];
+            long start = System.nanoTime();
+            long bytes = runConcurrently(executor, threads, iterationsPerThread,
+                    iterationsPerThread, operation, latenciesNanos);
+            long elapsedNanos = System.nanoTime() - start;
+            long[] allLatenciesNanos = new long[threads * iterationsPerThread];
+            for (int i = 0; i < threads; i++) {
+                System.arraycopy(latenciesNanos[i], 0, allLatenciesNanos, i * iterationsPerThread,
+                        iterationsPerThread);
+            }
+            long bytesPerOp = bytes < 0 ? -1 : bytes / allLatenciesNanos.length;
+            return addResult(name, allLatenciesNanos, elapsedNanos, bytesPerOp);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Records latencies measured by the caller, such as the time to reach a point within a longer
+     * operation. Throughput is derived from the latencies and allocations are not counted.
+     */
+    Result record(String name, long[] latenciesNanos) {
+        long totalNanos = 0;
+        for (long latencyNanos : latenciesNanos) {
+            totalNanos += latencyNanos;
+        }
+        return addResult(name, latenciesNanos.clone(), Math.max(1, totalNanos), -1);
+    }
+
+    /**
+     * Writes the results measured so far. Should be called once all benchmarks have run.
+     */
+    void writeResults() throws IOException {
+        writeReport(mTest, mResults);
+    }
+
+    /**
+     * Writes the given lines as the results of a test class, replacing those of a previous run.
+     */
+    static void writeReport(Class<?> test, List<?> lines) throws IOException {
+        if (!RESULTS_DIR.isDirectory() && !RESULTS_DIR.mkdirs()) {
+            throw new IOException("Cannot create " + RESULTS_DIR);
+        }
+        PrintWriter writer = new PrintWriter(
+                new FileWriter(new File(RESULTS_DIR, test.getSimpleName() + ".txt")));
+        try {
+            for (Object line : lines) {
+                writer.println(line);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns the bytes allocated so far by the current thread or -1 if the JVM cannot tell.
+     */
+    static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Returns the bytes allocated by all runs, or -1 if the JVM cannot tell. Latencies are only
+     * recorded if an array is given.
+     */
+    private static long runConcurrently(ExecutorService executor, int threads,
+                                        final int iterations,
+                                        final int firstIteration,
+                                        final ConcurrentOperation operation,
+                                        final long[][] latenciesNanos) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        for (int i = 0; i < threads; i++) {
+            final int thread = i;
+            results.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    start.await();
+                    long startBytes = getAllocatedBytes();
+                    for (int j = 0; j < iterations; j++) {
+                        long operationStart = System.nanoTime();
+                        operation.run(thread, firstIteration + j);
+                        if (latenciesNanos != null) {
+                            latenciesNanos[thread][j] = System.nanoTime() - operationStart;
+                        }
+                    }
+                    return startBytes < 0 ? -1 : getAllocatedBytes() - startBytes;
+                }
+            }));
+        }
+        start.countDown();
+        long bytes = 0;
+        for (Future<Long> result : results) {
+            // Rethrows the failures of the operation.
+            long threadBytes = result.get();
+            bytes = threadBytes < 0 || bytes < 0 ? -1 : bytes + threadBytes;
+        }
+        return bytes;
+    }
+
+    private Result addResult(String name, long[] latenciesNanos, long elapsedNanos,
+                             long bytesPerOp) {
+        Arrays.sort(latenciesNanos);
+        int count = latenciesNanos.length;
+        Result result = new Result(name, count, count * 1e9 / elapsedNanos, bytesPerOp,
+                latenciesNanos[count / 2], latenciesNanos[Math.min(count - 1, count * 99 / 100)]);
+        mResults.add(result);
+        return result;
+    }
+}
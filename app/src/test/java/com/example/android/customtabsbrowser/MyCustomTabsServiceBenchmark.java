@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.customtabs.CustomTabsIntent;
+import android.support.customtabs.CustomTabsService;
+import android.support.customtabs.CustomTabsSessionToken;
+import android.support.customtabs.ICustomTabsCallback;
+import android.support.customtabs.ICustomTabsService;
+import android.support.v4.app.BundleCompat;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures the binder methods of {@link MyCustomTabsService} as clients call them, through the
+ * {@link ICustomTabsService} interface returned by {@link MyCustomTabsService#onBind}, from one
+ * thread and from {@link #THREADS} binder threads at once. Results are written by
+ * {@link MicroBenchmark}.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class MyCustomTabsServiceBenchmark {
+
+    static final String CLIENT_PACKAGE = "com.example.client";
+
+    private static final int ITERATIONS = 2000;
+    // Distinct client sessions cycled through by the session benchmark.
+    private static final int CLIENTS = 64;
+    private static final int URLS = 16;
+    // Binder threads of the service calling at once, each for its own clients.
+    private static final int THREADS = 8;
+
+    private static final MicroBenchmark sBenchmark =
+            new MicroBenchmark(MyCustomTabsServiceBenchmark.class);
+
+    private TestService mService;
+    private ICustomTabsService mBinder;
+    private ICustomTabsCallback[] mCallbacks;
+    private Uri[] mUrls;
+    private List<Bundle> mOtherLikelyBundles;
+
+    @Before
+    public void setUp() {
+        mService = Robolectric.buildService(TestService.class).create().get();
+        mBinder = ICustomTabsService.Stub.asInterface(
+                mService.onBind(new Intent(CustomTabsService.ACTION_CUSTOM_TABS_CONNECTION)));
+        mCallbacks = new ICustomTabsCallback[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            mCallbacks[i] = new NoOpCallback();
+        }
+        mUrls = new Uri[URLS];
+        for (int i = 0; i < URLS; i++) {
+            mUrls[i] = Uri.parse(CustomTabFixtures.URL + "article/" + i);
+        }
+        mOtherLikelyBundles = new ArrayList<Bundle>();
+        for (int i = 0; i < 2; i++) {
+            Bundle bundle = new Bundle();
+            bundle.putParcelable(CustomTabsService.KEY_URL,
+                    Uri.parse(CustomTabFixtures.URL + "related/" + i));
+            mOtherLikelyBundles.add(bundle);
+        }
+    }
+
+    @AfterClass
+    public static void writeResults() throws Exception {
+        sBenchmark.writeResults();
+    }
+
+    @Test
+    public void newSessionAndCleanUp() throws Exception {
+        final CustomTabsSessionToken[] tokens = new CustomTabsSessionToken[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            tokens[i] = newToken(mCallbacks[i]);
+        }
+        int sessions = SessionRegistry.getInstance().size();
+        sBenchmark.measure("newSessionAndCleanUp", ITERATIONS, new MicroBenchmark.Operation() {
+            @Override
+            public void run(int iteration) throws Exception {
+                int client = iteration % CLIENTS;
+                assertTrue(mBinder.newSession(mCallbacks[client]));
+                mService.cleanUpSession(tokens[client]);
+            }
+        });
+        assertEquals(sessions, SessionRegistry.getInstance().size());
+    }
+
+    @Test
+    public void mayLaunchUrl() throws Exception {
+        final ICustomTabsCallback callback = mCallbacks[0];
+        mBinder.newSession(callback);
+        // Most hints of a flood are rejected by the rate limit, which is what is measured here.
+        sBenchmark.measure("mayLaunchUrl", ITERATIONS, new MicroBenchmark.Operation() {
+            @Override
+            public void run(int iteration) throws Exception {
+                mBinder.mayLaunchUrl(
+                        callback, mUrls[iteration % URLS], null, mOtherLikelyBundles);
+            }
+        });
+        mService.cleanUpSession(newToken(callback));
+    }
+
+    @Test
+    public void updateVisuals() throws Exception {
+        final ICustomTabsCallback callback = mCallbacks[0];
+        mBinder.newSession(callback);
+        final Bundle visuals = new Bundle();
+        visuals.putBundle(CustomTabsIntent.EXTRA_ACTION_BUTTON_BUNDLE,
+                CustomTabFixtures.newActionButton("Share"));
+        sBenchmark.measure("updateVisuals", ITERATIONS, new MicroBenchmark.Operation() {
+            @Override
+            public void run(int iteration) throws Exception {
+                assertTrue(mBinder.updateVisuals(callback, visuals));
+            }
+        });
+        mService.cleanUpSession(newToken(callback));
+    }
+
+    @Test
+    public void extraCommandGetStats() throws Exception {
+        sBenchmark.measure("extraCommandGetStats", ITERATIONS, new MicroBenchmark.Operation() {
+            @Override
+            public void run(int iteration) throws Exception {
+                mBinder.extraCommand(ExtraCommands.GET_STATS, null);
+            }
+        });
+    }
+
+    @Test
+    public void concurrentNewSessionAndCleanUp() throws Exception {
+        final CustomTabsSessionToken[] tokens = new CustomTabsSessionToken[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            tokens[i] = newToken(mCallbacks[i]);
+        }
+        int sessions = SessionRegistry.getInstance().size();
+        sBenchmark.measureConcurrently("concurrentNewSessionAndCleanUp", THREADS,
+                ITERATIONS / THREADS, new MicroBenchmark.ConcurrentOperation() {
+                    @Override
+                    public void run(int thread, int iteration) throws Exception {
+                        int client = thread + THREADS * (iteration % (CLIENTS / THREADS));
+                        assertTrue(mBinder.newSession(mCallbacks[client]));
+                        mService.cleanUpSession(tokens[client]);
+                    }
+                });
+        assertEquals(sessions, SessionRegistry.getInstance().size());
+    }
+
+    @Test
+    public void concurrentMayLaunchUrl() throws Exception {
+        for (int i = 0; i < THREADS; i++) {
+            assertTrue(mBinder.newSession(mCallbacks[i]));
+        }
+        sBenchmark.measureConcurrently("concurrentMayLaunchUrl", THREADS, ITERATIONS / THREADS,
+                new MicroBenchmark.ConcurrentOperation() {
+                    @Override
+                    public void run(int thread, int iteration) throws Exception {
+                        mBinder.mayLaunchUrl(mCallbacks[thread], mUrls[iteration % URLS], null,
+                                mOtherLikelyBundles);
+                    }
+                });
+        cleanUpSessions(THREADS);
+    }
+
+    @Test
+    public void concurrentUpdateVisuals() throws Exception {
+        for (int i = 0; i < THREADS; i++) {
+            assertTrue(mBinder.newSession(mCallbacks[i]));
+        }
+        final Bundle visuals = new Bundle();
+        visuals.putBundle(CustomTabsIntent.EXTRA_ACTION_BUTTON_BUNDLE,
+                CustomTabFixtures.newActionButton("Share"));
+        sBenchmark.measureConcurrently("concurrentUpdateVisuals", THREADS, ITERATIONS / THREADS,
+                new MicroBenchmark.ConcurrentOperation() {
+                    @Override
+                    public void run(int thread, int iteration) throws Exception {
+                        assertTrue(mBinder.updateVisuals(mCallbacks[thread], visuals));
+                    }
+                });
+        cleanUpSessions(THREADS);
+    }
+
+    private void cleanUpSessions(int clients) {
+        int sessions = SessionRegistry.getInstance().size();
+        for (int i = 0; i < clients; i++) {
+            mService.cleanUpSession(newToken(mCallbacks[i]));
+        }
+        assertEquals(sessions - clients, SessionRegistry.getInstance().size());
+    }
+
+    /**
+     * Returns the token the service creates for the given callback.
+     */
+    static CustomTabsSessionToken newToken(ICustomTabsCallback callback) {
+        Bundle extras = new Bundle();
+        BundleCompat.putBinder(extras, CustomTabsIntent.EXTRA_SESSION, callback.asBinder());
+        Intent intent = new Intent();
+        intent.putExtras(extras);
+        return CustomTabsSessionToken.getSessionTokenFromIntent(intent);
+    }
+
+    /**
+     * The service with a package manager which knows every caller as {@link #CLIENT_PACKAGE}.
+     */
+    public static class TestService extends MyCustomTabsService {
+        private final PackageManager mPackageManager = mock(PackageManager.class);
+
+        public TestService() {
+            when(mPackageManager.getPackagesForUid(anyInt()))
+                    .thenReturn(new String[] {CLIENT_PACKAGE});
+            when(mPackageManager.checkSignatures(anyInt(), anyInt()))
+                    .thenReturn(PackageManager.SIGNATURE_NO_MATCH);
+        }
+
+        @Override
+        public PackageManager getPackageManager() {
+            return mPackageManager;
+        }
+    }
+
+    /**
+     * A client callback which ignores every event.
+     */
+    static class NoOpCallback extends ICustomTabsCallback.Stub {
+        @Override
+        public void onNavigationEvent(int navigationEvent, Bundle extras) {
+        }
+
+        @Override
+        public void extraCallback(String callbackName, Bundle args) {
+        }
+    }
+}
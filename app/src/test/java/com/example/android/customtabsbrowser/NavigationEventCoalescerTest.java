@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.customtabs.CustomTabsSessionToken;
+import android.support.customtabs.ICustomTabsCallback;
+import android.support.v4.app.BundleCompat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static android.support.customtabs.CustomTabsCallback.NAVIGATION_ABORTED;
+import static android.support.customtabs.CustomTabsCallback.NAVIGATION_FAILED;
+import static android.support.customtabs.CustomTabsCallback.NAVIGATION_FINISHED;
+import static android.support.customtabs.CustomTabsCallback.NAVIGATION_STARTED;
+import static android.support.customtabs.CustomTabsIntent.EXTRA_SESSION;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class NavigationEventCoalescerTest {
+
+    private final RecordingCallback mCallback = new RecordingCallback();
+    private SessionState mSession;
+    private NavigationEventCoalescer mEvents;
+
+    @Before
+    public void setUp() {
+        Bundle extras = new Bundle();
+        BundleCompat.putBinder(extras, EXTRA_SESSION, mCallback);
+        Intent intent = new Intent();
+        intent.putExtras(extras);
+        mSession = new SessionState(
+                CustomTabsSessionToken.getSessionTokenFromIntent(intent), 10123, "com.example");
+        mEvents = mSession.getNavigationEvents();
+    }
+
+    @Test
+    public void redirectsAreSentAsOneStart() {
+        mEvents.onNavigationEvent(NAVIGATION_STARTED);
+        mEvents.onNavigationEvent(NAVIGATION_STARTED);
+        mEvents.onNavigationEvent(NAVIGATION_STARTED);
+        mEvents.onNavigationEvent(NAVIGATION_FINISHED);
+        mEvents.onNavigationEvent(NAVIGATION_STARTED);
+        assertEquals(Arrays.asList("event 1", "event 2", "event 1"), mCallback.mCalls);
+    }
+
+    @Test
+    public void finishAfterAFailureIsDropped() {
+        mEvents.onNavigationEvent(NAVIGATION_STARTED);
+        mEvents.onNavigationEvent(NAVIGATION_FAILED);
+        mEvents.onNavigationEvent(NAVIGATION_FINISHED);
+        mEvents.onNavigationEvent(NAVIGATION_STARTED);
+        mEvents.onNavigationEvent(NAVIGATION_ABORTED);
+        mEvents.onNavigationEvent(NAVIGATION_FINISHED);
+        assertEquals(Arrays.asList("event 1", "event 3", "event 1", "event 4", "event 2"),
+                mCallback.mCalls);
+    }
+
+    @Test
+    public void unchangedTitlesAreDropped() {
+        mEvents.onTitleChanged(null);
+        mEvents.onTitleChanged("Example");
+        mEvents.onTitleChanged("Example");
+        mEvents.onTitleChanged("Other");
+        mEvents.onTitleChanged("Example");
+        assertEquals(Arrays.asList("title Example", "title Other", "title Example"),
+                mCallback.mCalls);
+    }
+
+    @Test
+    public void countsEventsAndBinderCalls() {
+        int events = NavigationEventCoalescer.getEventCount();
+        int binderCalls = NavigationEventCoalescer.getBinderCallCount();
+        mEvents.onNavigationEvent(NAVIGATION_STARTED);
+        mEvents.onNavigationEvent(NAVIGATION_STARTED);
+        mEvents.onTitleChanged("Example");
+        mEvents.onTitleChanged("Example");
+        mEvents.onNavigationEvent(NAVIGATION_FINISHED);
+        assertEquals(events + 5, NavigationEventCoalescer.getEventCount());
+        assertEquals(binderCalls + 3, NavigationEventCoalescer.getBinderCallCount());
+        assertEquals(3, mCallback.mCalls.size());
+    }
+
+    @Test
+    public void releasedSessionsGetNothing() {
+        mSession.release();
+        mEvents.onNavigationEvent(NAVIGATION_STARTED);
+        mEvents.onTitleChanged("Example");
+        assertEquals(0, mCallback.mCalls.size());
+    }
+
+    /**
+     * A client callback living in this process, which records the calls it gets.
+     */
+    private static class RecordingCallback extends ICustomTabsCallback.Stub {
+        final List<String> mCalls = new ArrayList<String>();
+
+        @Override
+        public void onNavigationEvent(int navigationEvent, Bundle extras) {
+            mCalls.add("event " + navigationEvent);
+        }
+
+        @Override
+        public void extraCallback(String callbackName, Bundle args) {
+            assertEquals(NavigationEventCoalescer.EXTRA_CALLBACK_TITLE_CHANGED, callbackName);
+            mCalls.add("title " + args.getString(NavigationEventCoalescer.KEY_TITLE));
+        }
+    }
+}
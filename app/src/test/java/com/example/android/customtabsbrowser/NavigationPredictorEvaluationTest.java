@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.net.Uri;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Offline evaluation of {@link NavigationPredictor} on a recorded launch log.
+ * <p/>
+ * The log is a history file as the predictor writes it on the device: one record per launch, the
+ * client package then the launched origin, each written with {@link java.io.DataOutput#writeUTF}.
+ * Any device's {@code no_backup/navigation_history} can replace the {@value #LAUNCH_LOG} fixture.
+ * <p/>
+ * Each launch is replayed as a new session followed by the launch: the origins predicted for the
+ * package are the ones pre-resolved, and a launch of one of them saves a connection setup. The
+ * predictor is compared with two baselines given the same budget of predictions: the most
+ * recently launched origins and the most launched origins of all time.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class NavigationPredictorEvaluationTest {
+
+    private static final String LAUNCH_LOG = "navigation_history";
+    private static final int LAUNCH_LOG_RECORDS = 1000;
+
+    @Test
+    public void beatsRecencyAndFrequencyBaselines() throws IOException {
+        List<String[]> launches = readLaunchLog();
+        assertEquals(LAUNCH_LOG_RECORDS, launches.size());
+
+        Metrics predictor = replay("predictor", new PredictorModel(), launches);
+        Metrics recency = replay("recency", new RecencyModel(), launches);
+        Metrics frequency = replay("frequency", new FrequencyModel(), launches);
+        MicroBenchmark.writeReport(NavigationPredictorEvaluationTest.class,
+                Arrays.asList(predictor, recency, frequency));
+
+        String report = predictor + ", " + recency + ", " + frequency;
+        assertTrue(report, predictor.getRecall() > recency.getRecall());
+        assertTrue(report, predictor.getRecall() > frequency.getRecall());
+        assertTrue(report, predictor.getPrecision() > recency.getPrecision());
+        assertTrue(report, predictor.getPrecision() > frequency.getPrecision());
+        assertTrue(report, predictor.mConnectionsSaved > recency.mConnectionsSaved);
+        assertTrue(report, predictor.mConnectionsSaved > frequency.mConnectionsSaved);
+    }
+
+    private static List<String[]> readLaunchLog() throws IOException {
+        InputStream log = NavigationPredictorEvaluationTest.class.getResourceAsStream(LAUNCH_LOG);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(log));
+        ArrayList<String[]> launches = new ArrayList<String[]>();
+        try {
+            while (true) {
+                String packageName = in.readUTF();
+                launches.add(new String[] {packageName, in.readUTF()});
+            }
+        } catch (EOFException e) {
+            // End of the log.
+        } finally {
+            in.close();
+        }
+        return launches;
+    }
+
+    private static Metrics replay(String name, Model model, List<String[]> launches) {
+        Metrics metrics = new Metrics(name);
+        for (String[] launch : launches) {
+            List<String> predictions = model.predict(launch[0]);
+            metrics.mLaunches++;
+            metrics.mPredictions += predictions.size();
+            if (predictions.contains(launch[1])) {
+                metrics.mConnectionsSaved++;
+            }
+            model.record(launch[0], launch[1]);
+        }
+        return metrics;
+    }
+
+    /**
+     * The outcome of replaying the log with one model.
+     */
+    private static class Metrics {
+        final String mName;
+        int mLaunches;
+        // Origins pre-resolved, one connection setup each.
+        int mPredictions;
+        // Launches of a pre-resolved origin.
+        int mConnectionsSaved;
+
+        Metrics(String name) {
+            mName = name;
+        }
+
+        double getPrecision() {
+            return mPredictions == 0 ? 0 : (double) mConnectionsSaved / mPredictions;
+        }
+
+        double getRecall() {
+            return mLaunches == 0 ? 0 : (double) mConnectionsSaved / mLaunches;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s launches=%d predictions=%d precision=%.3f"
+                    + " recall=%.3f connectionsSaved=%d connectionsWasted=%d", mName, mLaunches,
+                    mPredictions, getPrecision(), getRecall(), mConnectionsSaved,
+                    mPredictions - mConnectionsSaved);
+        }
+    }
+
+    private interface Model {
+        List<String> predict(String packageName);
+
+        void record(String packageName, String origin);
+    }
+
+    private static class PredictorModel implements Model {
+        private final NavigationPredictor mPredictor = new NavigationPredictor();
+
+        @Override
+        public List<String> predict(String packageName) {
+            ArrayList<String> origins = new ArrayList<String>();
+            for (Uri origin : mPredictor.predict(packageName)) {
+                origins.add(origin.toString());
+            }
+            return origins;
+        }
+
+        @Override
+        public void record(String packageName, String origin) {
+            mPredictor.record(packageName, origin);
+        }
+    }
+
+    private static class RecencyModel implements Model {
+        private final HashMap<String, LinkedList<String>> mRecent =
+                new HashMap<String, LinkedList<String>>();
+
+        @Override
+        public List<String> predict(String packageName) {
+            LinkedList<String> recent = mRecent.get(packageName);
+            if (recent == null) {
+                return new ArrayList<String>();
+            }
+            return new ArrayList<String>(recent.subList(
+                    0, Math.min(recent.size(), NavigationPredictor.MAX_PREDICTIONS)));
+        }
+
+        @Override
+        public void record(String packageName, String origin) {
+            LinkedList<String> recent = mRecent.get(packageName);
+            if (recent == null) {
+                recent = new LinkedList<String>();
+                mRecent.put(packageName, recent);
+            }
+            recent.remove(origin);
+            recent.addFirst(origin);
+        }
+    }
+
+    private static class FrequencyModel implements Model {
+        // Ties go to the origin launched first.
+        private final HashMap<String, LinkedHashMap<String, Integer>> mCounts =
+                new HashMap<String, LinkedHashMap<String, Integer>>();
+
+        @Override
+        public List<String> predict(String packageName) {
+            ArrayList<String> top = new ArrayList<String>();
+            LinkedHashMap<String, Integer> counts = mCounts.get(packageName);
+            if (counts == null) {
+                return top;
+            }
+            ArrayList<String> candidates = new ArrayList<String>(counts.keySet());
+            while (top.size() < NavigationPredictor.MAX_PREDICTIONS && !candidates.isEmpty()) {
+                String best = candidates.get(0);
+                for (String candidate : candidates) {
+                    if (counts.get(candidate) > counts.get(best)) {
+                        best = candidate;
+                    }
+                }
+                candidates.remove(best);
+                top.add(best);
+            }
+            return top;
+        }
+
+        @Override
+        public void record(String packageName, String origin) {
+            LinkedHashMap<String, Integer> counts = mCounts.get(packageName);
+            if (counts == null) {
+                counts = new LinkedHashMap<String, Integer>();
+                mCounts.put(packageName, counts);
+            }
+            Integer count = counts.get(origin);
+            counts.put(origin, count == null ? 1 : count + 1);
+        }
+    }
+}
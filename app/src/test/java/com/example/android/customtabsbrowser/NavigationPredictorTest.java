@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class NavigationPredictorTest {
+
+    private static final String PACKAGE = "com.example.client";
+    private static final String OTHER_PACKAGE = "com.example.other";
+    private static final String A = "https://a.example.com";
+    private static final String B = "https://b.example.com";
+    private static final String C = "https://c.example.com";
+    private static final String D = "https://d.example.com";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mHistoryFile;
+    private NavigationPredictor mPredictor;
+
+    @Before
+    public void setUp() {
+        mHistoryFile = new File(mFolder.getRoot(), "history");
+        mPredictor = new NavigationPredictor();
+        mPredictor.load(mHistoryFile);
+    }
+
+    @Test
+    public void getOrigin() {
+        assertEquals("https://example.com",
+                NavigationPredictor.getOrigin(Uri.parse("https://example.com/a/b?c#d")));
+        assertEquals("http://example.com:8080",
+                NavigationPredictor.getOrigin(Uri.parse("http://example.com:8080/")));
+        assertNull(NavigationPredictor.getOrigin(Uri.parse("ftp://example.com/")));
+        assertNull(NavigationPredictor.getOrigin(Uri.parse("about:blank")));
+    }
+
+    @Test
+    public void predictsMostLaunchedOriginsFirst() {
+        launch(A, B, B, C, C, C, D, D, D, D);
+        assertEquals(origins(D, C, B), mPredictor.predict(PACKAGE));
+    }
+
+    @Test
+    public void recentLaunchesOutweighOldOnes() {
+        launch(A, A, B, B);
+        assertEquals(origins(B, A), mPredictor.predict(PACKAGE));
+    }
+
+    @Test
+    public void originsLaunchedLongAgoAreNotPredicted() {
+        launch(A);
+        // Enough launches for a single launch to decay below the prediction threshold.
+        int launches = (int) Math.ceil(Math.log(NavigationPredictor.MIN_PREDICTION_SCORE)
+                / Math.log(NavigationPredictor.DECAY));
+        for (int i = 0; i < launches; i++) {
+            launch(B);
+        }
+        assertEquals(origins(B), mPredictor.predict(PACKAGE));
+    }
+
+    @Test
+    public void packagesAreScoredSeparately() {
+        launch(A);
+        mPredictor.record(OTHER_PACKAGE, B);
+        assertEquals(origins(A), mPredictor.predict(PACKAGE));
+        assertEquals(origins(B), mPredictor.predict(OTHER_PACKAGE));
+        assertEquals(Collections.<Uri>emptyList(), mPredictor.predict("com.example.unknown"));
+    }
+
+    @Test
+    public void historyIsReplayed() {
+        launch(A, B, B, C, C, C);
+        assertEquals(origins(C, B, A), reload().predict(PACKAGE));
+    }
+
+    @Test
+    public void compactionPreservesRanking() {
+        launch(A, B, B, C, C, C, D, D, D, D);
+        List<Uri> expected = mPredictor.predict(PACKAGE);
+        // Overflows the log, which is compacted to one record per origin.
+        for (int i = 0; i < NavigationPredictor.MAX_LOG_RECORDS; i++) {
+            mPredictor.record(OTHER_PACKAGE, A);
+            mPredictor.append(OTHER_PACKAGE, A);
+        }
+        assertTrue(mHistoryFile.length() < NavigationPredictor.MAX_LOG_RECORDS * 4);
+        NavigationPredictor reloaded = reload();
+        assertEquals(expected, reloaded.predict(PACKAGE));
+        assertEquals(origins(A), reloaded.predict(OTHER_PACKAGE));
+    }
+
+    @Test
+    public void forgottenPackagesAreRemovedFromTheHistory() {
+        launch(A, B);
+        mPredictor.record(OTHER_PACKAGE, C);
+        mPredictor.append(OTHER_PACKAGE, C);
+        mPredictor.forget(PACKAGE);
+        assertEquals(Collections.<Uri>emptyList(), mPredictor.predict(PACKAGE));
+        NavigationPredictor reloaded = reload();
+        assertEquals(Collections.<Uri>emptyList(), reloaded.predict(PACKAGE));
+        assertEquals(origins(C), reloaded.predict(OTHER_PACKAGE));
+    }
+
+    private void launch(String... origins) {
+        for (String origin : origins) {
+            mPredictor.record(PACKAGE, origin);
+            mPredictor.append(PACKAGE, origin);
+        }
+    }
+
+    private NavigationPredictor reload() {
+        NavigationPredictor predictor = new NavigationPredictor();
+        predictor.load(mHistoryFile);
+        return predictor;
+    }
+
+    private static List<Uri> origins(String... origins) {
+        Uri[] uris = new Uri[origins.length];
+        for (int i = 0; i < origins.length; i++) {
+            uris[i] = Uri.parse(origins[i]);
+        }
+        return Arrays.asList(uris);
+    }
+}
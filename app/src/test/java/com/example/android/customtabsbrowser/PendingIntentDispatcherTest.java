@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class PendingIntentDispatcherTest {
+
+    // How long the slow client holds a send at most, so that a regression fails instead of hangs.
+    private static final long SLOW_CLIENT_TIMEOUT_MS = 5000;
+
+    private final ArrayList<Runnable> mQueuedTasks = new ArrayList<Runnable>();
+    private PendingIntentDispatcher mDispatcher;
+    private PendingIntentDispatcher.ErrorListener mListener;
+
+    @Before
+    public void setUp() {
+        mDispatcher = new PendingIntentDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                mQueuedTasks.add(task);
+            }
+        });
+        mListener = mock(PendingIntentDispatcher.ErrorListener.class);
+    }
+
+    @Test
+    public void sendsOnTheExecutor() {
+        mDispatcher.send(CustomTabFixtures.newPendingIntent("one"), mListener);
+        mDispatcher.send(CustomTabFixtures.newPendingIntent("two"), mListener);
+        assertEquals(0, getBroadcastCount());
+        runQueuedTasks();
+        assertEquals(2, getBroadcastCount());
+        assertEquals("one", getBroadcastAction(0));
+        assertEquals("two", getBroadcastAction(1));
+    }
+
+    @Test
+    public void dropsRepeatedTaps() {
+        PendingIntent pendingIntent = CustomTabFixtures.newPendingIntent("one");
+        mDispatcher.send(pendingIntent, mListener);
+        mDispatcher.send(pendingIntent, mListener);
+        runQueuedTasks();
+        assertEquals(1, getBroadcastCount());
+
+        SystemClock.sleep(PendingIntentDispatcher.DUPLICATE_TAP_WINDOW_MS);
+        mDispatcher.send(pendingIntent, mListener);
+        runQueuedTasks();
+        assertEquals(2, getBroadcastCount());
+    }
+
+    @Test
+    public void reportsCanceledIntentsOnTheUiThread() {
+        PendingIntent pendingIntent = CustomTabFixtures.newPendingIntent("one");
+        pendingIntent.cancel();
+        mDispatcher.send(pendingIntent, mListener);
+        runQueuedTasks();
+        verify(mListener, never()).onSendFailed(any(PendingIntent.CanceledException.class));
+        ShadowLooper.runUiThreadTasks();
+        verify(mListener).onSendFailed(any(PendingIntent.CanceledException.class));
+    }
+
+    @Test
+    public void slowClientsDoNotBlockTheUiThread() throws Exception {
+        final CountDownLatch sendStarted = new CountDownLatch(1);
+        final CountDownLatch clientDone = new CountDownLatch(1);
+        final AtomicInteger sends = new AtomicInteger();
+        Context slowClient = new ContextWrapper(RuntimeEnvironment.application) {
+            @Override
+            public void sendBroadcast(Intent intent) {
+                sends.incrementAndGet();
+                sendStarted.countDown();
+                try {
+                    clientDone.await(SLOW_CLIENT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        PendingIntent pendingIntent =
+                PendingIntent.getBroadcast(slowClient, 0, new Intent("slow"), 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        PendingIntentDispatcher dispatcher = new PendingIntentDispatcher(executor);
+        try {
+            dispatcher.send(pendingIntent, mListener);
+            assertTrue(sendStarted.await(SLOW_CLIENT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+            // The first send is now held by the client.
+            long start = System.nanoTime();
+            dispatcher.send(pendingIntent, mListener);
+            dispatcher.send(pendingIntent, mListener);
+            SystemClock.sleep(PendingIntentDispatcher.DUPLICATE_TAP_WINDOW_MS);
+            dispatcher.send(pendingIntent, mListener);
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("Sends took " + elapsedMs + "ms", elapsedMs < SLOW_CLIENT_TIMEOUT_MS / 5);
+            assertEquals(1, sends.get());
+        } finally {
+            clientDone.countDown();
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(SLOW_CLIENT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // The taps within the window were dropped, the one after it was queued behind the first.
+        assertEquals(2, sends.get());
+        verify(mListener, never()).onSendFailed(any(PendingIntent.CanceledException.class));
+    }
+
+    private void runQueuedTasks() {
+        for (Runnable task : mQueuedTasks) {
+            task.run();
+        }
+        mQueuedTasks.clear();
+    }
+
+    private static int getBroadcastCount() {
+        return ShadowApplication.getInstance().getBroadcastIntents().size();
+    }
+
+    private static String getBroadcastAction(int index) {
+        return ShadowApplication.getInstance().getBroadcastIntents().get(index).getAction();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ResourceCacheTest {
+
+    private static final String URL_A = "https://example.com/a.js";
+    private static final String URL_B = "https://example.com/b.js";
+    private static final String URL_C = "https://example.com/c.js";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mCacheDir;
+    private ResourceCache mCache;
+
+    @Before
+    public void setUp() {
+        mCacheDir = mFolder.getRoot();
+        mCache = new ResourceCache();
+    }
+
+    @Test
+    public void storesBodies() throws IOException {
+        assertNull(mCache.get(mCacheDir, URL_A));
+        assertTrue(put(URL_A, "hashA", 100));
+        ResourceCache.Entry entry = mCache.get(mCacheDir, URL_A);
+        assertNotNull(entry);
+        assertEquals(100, mCache.getFile(entry).length());
+        assertEquals(100, mCache.getSizeBytes());
+    }
+
+    @Test
+    public void identicalBodiesAreStoredOnce() throws IOException {
+        put(URL_A, "hash", 100);
+        put(URL_B, "hash", 100);
+        assertEquals(100, mCache.getSizeBytes());
+        mCache.remove(URL_A);
+        ResourceCache.Entry entry = mCache.get(mCacheDir, URL_B);
+        assertTrue(mCache.getFile(entry).exists());
+        assertEquals(100, mCache.getSizeBytes());
+        mCache.remove(URL_B);
+        assertFalse(mCache.getFile(entry).exists());
+        assertEquals(0, mCache.getSizeBytes());
+    }
+
+    @Test
+    public void storingTheSameBodyAgainKeepsIt() throws IOException {
+        put(URL_A, "hash", 100);
+        assertTrue(put(URL_A, "hash", 100));
+        ResourceCache.Entry entry = mCache.get(mCacheDir, URL_A);
+        assertNotNull(entry);
+        assertEquals(100, mCache.getFile(entry).length());
+        assertEquals(100, mCache.getSizeBytes());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntries() throws IOException {
+        put(URL_A, "hashA", 100);
+        put(URL_B, "hashB", 100);
+        put(URL_C, "hashC", 100);
+        // Makes A more recently used than B.
+        mCache.get(mCacheDir, URL_A);
+        mCache.setMaxSizeBytes(250);
+        assertNull(mCache.get(mCacheDir, URL_B));
+        assertNotNull(mCache.get(mCacheDir, URL_A));
+        assertNotNull(mCache.get(mCacheDir, URL_C));
+        assertEquals(200, mCache.getSizeBytes());
+    }
+
+    @Test
+    public void rejectsBodiesLargerThanAnEighthOfTheBudget() throws IOException {
+        mCache.setMaxSizeBytes(800);
+        assertFalse(put(URL_A, "hashA", 101));
+        assertNull(mCache.get(mCacheDir, URL_A));
+        assertTrue(put(URL_A, "hashA", 100));
+    }
+
+    @Test
+    public void trimDropsEverything() throws IOException {
+        put(URL_A, "hashA", 100);
+        ResourceCache.Entry entry = mCache.get(mCacheDir, URL_A);
+        mCache.trim();
+        assertNull(mCache.get(mCacheDir, URL_A));
+        assertFalse(mCache.getFile(entry).exists());
+        assertEquals(0, mCache.getSizeBytes());
+    }
+
+    @Test
+    public void indexIsReloaded() throws Exception {
+        put(URL_A, "hashA", 100);
+        put(URL_B, "hashB", 200);
+        mCache.refresh(mCache.get(mCacheDir, URL_A), 1234);
+        waitForIndexWrite();
+
+        ResourceCache reloaded = new ResourceCache();
+        ResourceCache.Entry entry = reloaded.get(mCacheDir, URL_A);
+        assertEquals("hashA", entry.mContentHash);
+        assertEquals("\"etag\"", entry.mETag);
+        assertEquals(1234, entry.mExpiresAt);
+        assertNotNull(reloaded.get(mCacheDir, URL_B));
+        assertEquals(300, reloaded.getSizeBytes());
+    }
+
+    @Test
+    public void interruptedDownloadsAreDeletedOnLoad() throws Exception {
+        File download = mCache.createTempFile(mCacheDir);
+        put(URL_A, "hashA", 100);
+        waitForIndexWrite();
+        new ResourceCache().get(mCacheDir, URL_A);
+        assertFalse(download.exists());
+    }
+
+    private boolean put(String url, String contentHash, int size) throws IOException {
+        File body = mCache.createTempFile(mCacheDir);
+        FileOutputStream out = new FileOutputStream(body);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return mCache.put(new ResourceCache.Entry(url, contentHash, size, "text/javascript",
+                "Content-Type: text/javascript", "\"etag\"", null, 0), body);
+    }
+
+    /**
+     * Waits for the index writes scheduled so far, which run on the background thread.
+     */
+    private static void waitForIndexWrite() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        ThreadUtils.runOnBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+}
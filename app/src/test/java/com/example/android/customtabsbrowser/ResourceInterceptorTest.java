@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.net.HttpURLConnection;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ResourceInterceptorTest {
+
+    // Whole seconds, as HTTP dates are.
+    private static final long NOW = 1450000000000L;
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    @Test
+    public void noStoreIsNotStored() {
+        assertEquals(-1, getExpiresAt("Cache-Control", "private, no-store, max-age=60"));
+    }
+
+    @Test
+    public void varyIsOnlyStoredForAcceptEncoding() {
+        assertEquals(-1, getExpiresAt("Vary", "User-Agent"));
+        assertEquals(NOW, getExpiresAt("Vary", " Accept-Encoding "));
+    }
+
+    @Test
+    public void noCacheMustBeRevalidated() {
+        assertEquals(NOW, getExpiresAt("Cache-Control", "no-cache, max-age=60"));
+    }
+
+    @Test
+    public void maxAgeIsInSeconds() {
+        assertEquals(NOW + 60 * 1000, getExpiresAt("Cache-Control", "public, Max-Age=60"));
+    }
+
+    @Test
+    public void malformedMaxAgeMustBeRevalidated() {
+        assertEquals(NOW, getExpiresAt("Cache-Control", "max-age=soon"));
+    }
+
+    @Test
+    public void maxAgeTakesPrecedenceOverExpires() {
+        assertEquals(NOW + 60 * 1000, getExpiresAt(
+                "Cache-Control", "max-age=60", "Expires", formatDate(NOW + HOUR_MS)));
+    }
+
+    @Test
+    public void expiresInThePast() {
+        assertEquals(NOW, getExpiresAt("Expires", formatDate(NOW - HOUR_MS)));
+        assertEquals(NOW + HOUR_MS, getExpiresAt("Expires", formatDate(NOW + HOUR_MS)));
+    }
+
+    @Test
+    public void lastModifiedGivesHeuristicFreshness() {
+        assertEquals(NOW + HOUR_MS,
+                getExpiresAt("Last-Modified", formatDate(NOW - 10 * HOUR_MS)));
+    }
+
+    @Test
+    public void noFreshnessInformationMustBeRevalidated() {
+        assertEquals(NOW, getExpiresAt());
+    }
+
+    @Test
+    public void sameSiteIncludesSubdomains() {
+        assertTrue(ResourceInterceptor.isSameSite("example.com", "example.com"));
+        assertTrue(ResourceInterceptor.isSameSite("static.example.com", "Example.com"));
+        assertTrue(ResourceInterceptor.isSameSite("example.com", "m.example.com"));
+    }
+
+    @Test
+    public void otherHostsAreThirdParty() {
+        assertFalse(ResourceInterceptor.isSameSite("cdn.example.net", "example.com"));
+        assertFalse(ResourceInterceptor.isSameSite("badexample.com", "example.com"));
+        // Sibling subdomains could belong to different sites, as on hosting domains.
+        assertFalse(ResourceInterceptor.isSameSite("static.example.com", "www.example.com"));
+        assertFalse(ResourceInterceptor.isSameSite("example.com", null));
+    }
+
+    private static long getExpiresAt(String... headers) {
+        return ResourceInterceptor.getExpiresAt(new FakeConnection(headers), NOW);
+    }
+
+    private static String formatDate(long time) {
+        SimpleDateFormat format =
+                new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    /**
+     * A connection which only returns the given response headers.
+     */
+    private static class FakeConnection extends HttpURLConnection {
+        private final HashMap<String, String> mHeaders = new HashMap<String, String>();
+
+        FakeConnection(String... headers) {
+            super(null);
+            for (int i = 0; i < headers.length; i += 2) {
+                mHeaders.put(headers[i].toLowerCase(Locale.US), headers[i + 1]);
+            }
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+    }
+}
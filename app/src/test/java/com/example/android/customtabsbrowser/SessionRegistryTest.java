@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Bundle;
+import android.support.customtabs.CustomTabsSessionToken;
+import android.support.v4.app.BundleCompat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static android.support.customtabs.CustomTabsIntent.EXTRA_SESSION;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class SessionRegistryTest {
+
+    private static final int THREADS = 8;
+    private static final int SESSIONS_PER_THREAD = 250;
+    private static final int UID = 10123;
+    private static final String PACKAGE = "com.example.client";
+
+    private SessionRegistry mRegistry;
+
+    @Before
+    public void setUp() {
+        mRegistry = new SessionRegistry();
+    }
+
+    @Test
+    public void findsSessionsByTokenAndIntent() {
+        Intent intent = newSessionIntent();
+        CustomTabsSessionToken token = CustomTabsSessionToken.getSessionTokenFromIntent(intent);
+        SessionState state = mRegistry.add(token, UID, PACKAGE);
+        assertSame(state, mRegistry.add(token, UID, PACKAGE));
+        assertSame(state, mRegistry.get(token));
+        assertSame(state, mRegistry.get(intent));
+        assertNull(mRegistry.get(newSessionIntent()));
+        assertNull(mRegistry.get(new Intent()));
+    }
+
+    @Test
+    public void removeReleasesTheSession() {
+        Intent intent = newSessionIntent();
+        CustomTabsSessionToken token = CustomTabsSessionToken.getSessionTokenFromIntent(intent);
+        SessionState state = mRegistry.add(token, UID, PACKAGE);
+        assertTrue(mRegistry.remove(token));
+        assertTrue(state.isReleased());
+        assertFalse(mRegistry.remove(token));
+        assertNull(mRegistry.get(token));
+        assertNull(mRegistry.get(intent));
+        assertEquals(0, mRegistry.size());
+    }
+
+    /**
+     * Adds, looks up and removes sessions from several threads at once, as concurrent newSession,
+     * mayLaunchUrl and cleanUpSession binder calls do, and checks no session is lost or leaked.
+     */
+    @Test
+    public void concurrentSessionsAreAllCleanedUp() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int j = 0; j < SESSIONS_PER_THREAD; j++) {
+                        runSession();
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Void> result : results) {
+            // Rethrows assertion failures of the worker threads.
+            result.get();
+        }
+        executor.shutdown();
+
+        assertEquals(0, mRegistry.size());
+        StringWriter dump = new StringWriter();
+        mRegistry.dump(new PrintWriter(dump));
+        int sessions = THREADS * SESSIONS_PER_THREAD;
+        assertEquals("Sessions: 0 added=" + sessions + " removed=" + sessions,
+                dump.toString().trim());
+    }
+
+    private void runSession() {
+        Intent intent = newSessionIntent();
+        CustomTabsSessionToken token = CustomTabsSessionToken.getSessionTokenFromIntent(intent);
+        SessionState state = mRegistry.add(token, UID, PACKAGE);
+        assertSame(state, mRegistry.get(token));
+        assertSame(state, mRegistry.get(intent));
+        assertTrue(mRegistry.remove(token));
+        assertFalse(mRegistry.remove(token));
+        assertTrue(state.isReleased());
+    }
+
+    private static Intent newSessionIntent() {
+        Bundle extras = new Bundle();
+        BundleCompat.putBinder(extras, EXTRA_SESSION, new Binder());
+        Intent intent = new Intent();
+        intent.putExtras(extras);
+        return intent;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpeculationLimiterTest {
+
+    private static final long SECOND_NANOS = 1000000000L;
+
+    private long mNowNanos;
+    private SpeculationLimiter mLimiter;
+
+    @Before
+    public void setUp() {
+        mLimiter = new SpeculationLimiter(new SpeculationLimiter.Clock() {
+            @Override
+            public long nanoTime() {
+                return mNowNanos;
+            }
+        });
+    }
+
+    @Test
+    public void allowsBurstUpToCapacity() {
+        for (int i = 0; i < SpeculationLimiter.CAPACITY; i++) {
+            assertTrue(mLimiter.tryAcquire("a", 1));
+        }
+        assertFalse(mLimiter.tryAcquire("a", 1));
+    }
+
+    @Test
+    public void failedAcquireTakesNoTokens() {
+        assertTrue(mLimiter.tryAcquire("a", SpeculationLimiter.CAPACITY - 2));
+        assertFalse(mLimiter.tryAcquire("a", 3));
+        assertTrue(mLimiter.tryAcquire("a", 2));
+    }
+
+    @Test
+    public void packagesHaveSeparateBuckets() {
+        assertTrue(mLimiter.tryAcquire("a", SpeculationLimiter.CAPACITY));
+        assertFalse(mLimiter.tryAcquire("a", 1));
+        assertTrue(mLimiter.tryAcquire("b", SpeculationLimiter.CAPACITY));
+    }
+
+    @Test
+    public void unknownPackagesShareABucket() {
+        assertTrue(mLimiter.tryAcquire(null, SpeculationLimiter.CAPACITY));
+        assertFalse(mLimiter.tryAcquire(null, 1));
+    }
+
+    @Test
+    public void refillsOverTime() {
+        assertTrue(mLimiter.tryAcquire("a", SpeculationLimiter.CAPACITY));
+        // Half a token.
+        mNowNanos += SECOND_NANOS / SpeculationLimiter.TOKENS_PER_SECOND / 2;
+        assertFalse(mLimiter.tryAcquire("a", 1));
+        mNowNanos += SECOND_NANOS / SpeculationLimiter.TOKENS_PER_SECOND / 2;
+        assertTrue(mLimiter.tryAcquire("a", 1));
+        assertFalse(mLimiter.tryAcquire("a", 1));
+    }
+
+    @Test
+    public void refillsUpToCapacity() {
+        assertTrue(mLimiter.tryAcquire("a", SpeculationLimiter.CAPACITY));
+        mNowNanos += 60 * SECOND_NANOS;
+        assertTrue(mLimiter.tryAcquire("a", SpeculationLimiter.CAPACITY));
+        assertFalse(mLimiter.tryAcquire("a", 1));
+    }
+
+    @Test
+    public void busyPackagesRunBehindQuietOnes() {
+        assertEquals(1, mLimiter.nextRound("busy"));
+        assertEquals(2, mLimiter.nextRound("busy"));
+        assertEquals(3, mLimiter.nextRound("busy"));
+        assertEquals(1, mLimiter.nextRound("quiet"));
+    }
+
+    @Test
+    public void newPackagesStartAfterTheCurrentRound() {
+        mLimiter.nextRound("busy");
+        mLimiter.nextRound("busy");
+        mLimiter.onStarted(2);
+        assertEquals(3, mLimiter.nextRound("late"));
+        // Rounds never go back.
+        mLimiter.onStarted(1);
+        assertEquals(3, mLimiter.nextRound("later"));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.customtabsbrowser;
+
+import android.graphics.Color;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assume.assumeTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ToolbarPaletteTest {
+
+    @Test
+    public void darkToolbarGetsWhiteText() {
+        assertEquals(Color.WHITE, ToolbarPalette.get(Color.rgb(0x3f, 0x51, 0xb5)).mTextColor);
+    }
+
+    @Test
+    public void lightToolbarGetsBlackText() {
+        assertEquals(Color.BLACK, ToolbarPalette.get(Color.rgb(0xff, 0xeb, 0x3b)).mTextColor);
+    }
+
+    @Test
+    public void statusBarIsDarkenedByAQuarter() {
+        ToolbarPalette palette = ToolbarPalette.get(Color.argb(0x80, 200, 100, 40));
+        assertEquals(Color.argb(0x80, 150, 75, 30), palette.mStatusBarColor);
+    }
+
+    @Test
+    public void palettesAreCached() {
+        int color = Color.rgb(12, 34, 56);
+        assertSame(ToolbarPalette.get(color), ToolbarPalette.get(color));
+    }
+
+    @Test
+    public void cachedLookupsAllocateNothing() throws Exception {
+        final int[] colors = {
+                Color.rgb(0x3f, 0x51, 0xb5), Color.rgb(0xe9, 0x1e, 0x63), Color.WHITE, Color.BLACK,
+        };
+        for (int color : colors) {
+            ToolbarPalette.get(color);
+        }
+        MicroBenchmark.Result result = new MicroBenchmark(ToolbarPaletteTest.class).measure(
+                "cachedGet", 10000, new MicroBenchmark.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        ToolbarPalette.get(colors[iteration % colors.length]);
+                    }
+                });
+        assumeTrue(result.mBytesPerOp >= 0);
+        assertEquals(result.toString(), 0, result.mBytesPerOp);
+    }
+
+    @Test
+    public void blendInterpolatesEachChannel() {
+        int from = Color.argb(0, 0, 100, 200);
+        int to = Color.argb(200, 100, 0, 200);
+        assertEquals(from, ToolbarPalette.blend(from, to, 0f));
+        assertEquals(to, ToolbarPalette.blend(from, to, 1f));
+        assertEquals(Color.argb(100, 50, 50, 200), ToolbarPalette.blend(from, to, 0.5f));
+    }
+}